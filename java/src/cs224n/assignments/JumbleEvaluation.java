@@ -0,0 +1,235 @@
+package cs224n.assignments;
+
+import cs224n.langmodel.LanguageModel;
+import cs224n.langmodel.NBestScorer;
+import cs224n.util.EditDistance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates a language model on a list of Jumble problems in one pass,
+ * producing the word error rate and percent correct of the model's choices
+ * together with the worst-path and random-path baselines.  The candidates
+ * of a problem are scored with an NBestScorer, so prefixes they share are
+ * scored once.  <p/>
+ *
+ * Each problem's edit distances are cached, so the distance between the
+ * correct sentence and a candidate is computed at most once, and only when
+ * it is needed: for the candidates tied for the best score and, when the
+ * baselines are wanted, for every candidate.  The problems are evaluated
+ * in parallel on the common (work-stealing) ForkJoinPool, and the per
+ * problem results are summed in problem order, so the totals do not depend
+ * on the scheduling.  <p/>
+ *
+ * The error rates follow LanguageModelTester: the model's WER averages the
+ * per-problem error rates (ties for the best score share the average
+ * distance), while the baselines divide total distance by total words.
+ */
+class JumbleEvaluation {
+
+  private double wordErrorRate = Double.NaN;
+  private double percentCorrect = Double.NaN;
+  private double worstPathErrorRate = Double.NaN;
+  private double randomPathErrorRate = Double.NaN;
+  private List<List<String>> bestGuesses;
+
+  /**
+   * The outcome for one problem.
+   */
+  private static class Outcome {
+    List<String> bestGuess;
+    double numWithBestScores;
+    double distanceForBestScores;
+    double worstDistance;
+    double meanDistance;
+  }
+
+  /**
+   * Evaluates the problems.  If the model is null only the baselines are
+   * computed; if baselines is false only the model's scores are.  If
+   * parallel is false the problems are evaluated on the calling thread.
+   */
+  static JumbleEvaluation evaluate(LanguageModel model,
+                                   List<JumbleProblem> problems,
+                                   boolean baselines, boolean parallel) {
+    Outcome[] outcomes = new Outcome[problems.size()];
+    if (parallel) {
+      ForkJoinPool.commonPool().invoke(new Task(model, problems, baselines,
+                                                outcomes, 0, outcomes.length));
+    } else {
+      EditDistance editDistance = new EditDistance();
+      for (int p = 0; p < outcomes.length; p++)
+        outcomes[p] = evaluate(model, problems.get(p), baselines, editDistance);
+    }
+
+    JumbleEvaluation evaluation = new JumbleEvaluation();
+    double totalWER = 0.0;
+    int absoluteCorrect = 0;
+    double totalWords = 0.0;
+    double totalWorst = 0.0;
+    double totalMean = 0.0;
+    List<List<String>> bestGuesses =
+      new ArrayList<List<String>>(outcomes.length);
+    for (int p = 0; p < outcomes.length; p++) {
+      Outcome outcome = outcomes[p];
+      int correctSize = problems.get(p).getCorrectSentence().size();
+      totalWords += correctSize;
+      if (model != null) {
+        bestGuesses.add(outcome.bestGuess);
+        if (outcome.distanceForBestScores == 0)
+          absoluteCorrect++;
+        totalWER += outcome.distanceForBestScores /
+          (outcome.numWithBestScores * correctSize);
+      }
+      if (baselines) {
+        totalWorst += outcome.worstDistance;
+        totalMean += outcome.meanDistance;
+      }
+    }
+    if (model != null) {
+      evaluation.wordErrorRate = totalWER / (double) problems.size();
+      evaluation.percentCorrect = (double) absoluteCorrect / (double) problems.size();
+      evaluation.bestGuesses = bestGuesses;
+    }
+    if (baselines) {
+      evaluation.worstPathErrorRate = totalWorst / totalWords;
+      evaluation.randomPathErrorRate = totalMean / totalWords;
+    }
+    return evaluation;
+  }
+
+  private static Outcome evaluate(LanguageModel model, JumbleProblem problem,
+                                  boolean baselines, EditDistance editDistance) {
+    List<String> correctSentence = problem.getCorrectSentence();
+    List<List<String>> guesses = problem.getNBestSentences();
+    double[] distances = new double[guesses.size()];
+    Arrays.fill(distances, Double.NaN);
+    Outcome outcome = new Outcome();
+
+    if (model != null) {
+      double[] scores = NBestScorer.score(model, guesses);
+      int best = 0;
+      for (int g = 1; g < scores.length; g++) {
+        if (scores[g] > scores[best])
+          best = g;
+      }
+      double numWithBestScores = 0.0;
+      double distanceForBestScores = 0.0;
+      for (int g = best; g < scores.length; g++) {
+        if (scores[g] == scores[best]) {
+          numWithBestScores += 1.0;
+          distanceForBestScores += distance(editDistance, correctSentence,
+                                            guesses, distances, g);
+        }
+      }
+      outcome.bestGuess = guesses.get(best);
+      outcome.numWithBestScores = numWithBestScores;
+      outcome.distanceForBestScores = distanceForBestScores;
+    }
+
+    if (baselines) {
+      double worstDistance = Double.NEGATIVE_INFINITY;
+      double sumDistance = 0.0;
+      for (int g = 0; g < guesses.size(); g++) {
+        double distance = distance(editDistance, correctSentence,
+                                   guesses, distances, g);
+        if (distance > worstDistance)
+          worstDistance = distance;
+        sumDistance += distance;
+      }
+      outcome.worstDistance = worstDistance;
+      outcome.meanDistance = sumDistance / guesses.size();
+    }
+    return outcome;
+  }
+
+  private static double distance(EditDistance editDistance,
+                                 List<String> correctSentence,
+                                 List<List<String>> guesses,
+                                 double[] distances, int g) {
+    if (Double.isNaN(distances[g]))
+      distances[g] = editDistance.getDistance(correctSentence, guesses.get(g));
+    return distances[g];
+  }
+
+  /**
+   * Evaluates a range of problems, splitting it in halves down to single
+   * problems.
+   */
+  private static class Task extends RecursiveAction {
+    static final long serialVersionUID = 1L;
+
+    private LanguageModel model;
+    private List<JumbleProblem> problems;
+    private boolean baselines;
+    private Outcome[] outcomes;
+    private int start;
+    private int end;
+
+    Task(LanguageModel model, List<JumbleProblem> problems, boolean baselines,
+         Outcome[] outcomes, int start, int end) {
+      this.model = model;
+      this.problems = problems;
+      this.baselines = baselines;
+      this.outcomes = outcomes;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute() {
+      if (end - start <= 1) {
+        if (start < end)
+          outcomes[start] = evaluate(model, problems.get(start), baselines,
+                                     new EditDistance());
+        return;
+      }
+      int mid = (start + end) >>> 1;
+      invokeAll(new Task(model, problems, baselines, outcomes, start, mid),
+                new Task(model, problems, baselines, outcomes, mid, end));
+    }
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * The average, over problems, of the word error rate of the model's
+   * choice.
+   */
+  double getWordErrorRate() {
+    return wordErrorRate;
+  }
+
+  /**
+   * The fraction of problems where the model's choice is exactly right.
+   */
+  double getPercentCorrect() {
+    return percentCorrect;
+  }
+
+  /**
+   * The word error rate when the worst candidate is always chosen.
+   */
+  double getWorstPathErrorRate() {
+    return worstPathErrorRate;
+  }
+
+  /**
+   * The expected word error rate when a candidate is chosen at random.
+   */
+  double getRandomPathErrorRate() {
+    return randomPathErrorRate;
+  }
+
+  /**
+   * The model's choice for each problem (the first of any tied for the
+   * best score), in problem order.
+   */
+  List<String> getBestGuess(int problem) {
+    return bestGuesses.get(problem);
+  }
+
+}
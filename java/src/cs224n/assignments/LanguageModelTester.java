@@ -15,6 +15,13 @@ import java.text.DecimalFormat;
  */
 public class LanguageModelTester {
 
+  // sentences read from the (disk-backed) collection and scored at once
+  private static final int EVALUATION_CHUNK = 8192;
+
+  // test sentences, and passes over them per thread, for -stress
+  private static final int STRESS_SENTENCES = 2000;
+  private static final int STRESS_ROUNDS = 5;
+
   /**
    * Returns the perplexity of the data in the specified sentence
    * collection according to the specified language model.  The perplexity
@@ -25,20 +32,50 @@ public class LanguageModelTester {
    */
   static double computePerplexity(LanguageModel languageModel, 
                                   Collection<List<String>> sentences) {
+    return computePerplexity(languageModel, sentences, true).getFirst();
+  }
+
+  /**
+   * Computes the perplexity as above, and returns it along with the
+   * scoring throughput in tokens (words and stop tokens) per second.  The
+   * sentences are read in chunks; in parallel mode each chunk is scored
+   * with scoreBatch, which spreads it over all cores.  Either way the log
+   * probabilities are summed on this thread in corpus order, so the result
+   * is bit-for-bit the same in both modes and from run to run.
+   */
+  static Pair<Double,Double> computePerplexity(LanguageModel languageModel, 
+                                               Collection<List<String>> sentences,
+                                               boolean parallel) {
+    long start = System.nanoTime();
     double logProbability = 0.0;
     double numSymbols = 0.0;
-    for (List<String> sentence : sentences) {
-      logProbability += 
-        Math.log(languageModel.getSentenceProbability(sentence)) / 
-        Math.log(2.0);
-      numSymbols += sentence.size();
-      //      System.out.println("logp=" + logProbability + " size=" + numSymbols);
+    long numTokens = 0;
+    List<List<String>> chunk = new ArrayList<List<String>>(EVALUATION_CHUNK);
+    Iterator<List<String>> it = sentences.iterator();
+    while (it.hasNext()) {
+      chunk.clear();
+      while (it.hasNext() && chunk.size() < EVALUATION_CHUNK) {
+        chunk.add(it.next());
+      }
+      double[] scores;
+      if (parallel) {
+        scores = languageModel.scoreBatch(chunk);
+      } else {
+        scores = new double[chunk.size()];
+        for (int i = 0; i < scores.length; i++) {
+          scores[i] = languageModel.getSentenceLogProbability(chunk.get(i));
+        }
+      }
+      for (int i = 0; i < scores.length; i++) {
+        logProbability += scores[i] / Math.log(2.0);
+        numSymbols += chunk.get(i).size();
+        numTokens += chunk.get(i).size() + 1;
+      }
     }
     double avgLogProbability = logProbability / numSymbols;
-    //    System.out.println("avglogp=" + avgLogProbability);
     double perplexity = Math.pow(0.5, avgLogProbability);
-    //    System.out.println("perplexity=" + perplexity);
-    return perplexity;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return new Pair<Double,Double>(perplexity, numTokens / seconds);
   }
 
   /**
@@ -58,55 +95,23 @@ public class LanguageModelTester {
   static Pair<Double,Double> computeWordErrorRate(LanguageModel languageModel, 
 						  List<JumbleProblem> jumbleProblems,
 						  boolean showGuesses) {
-    double totalDistance = 0.0;
-    double totalWords = 0.0;
-    double totalWER = 0.0;
-    int absoluteCorrect = 0;
-    EditDistance editDistance = new EditDistance();
-
-    if( showGuesses ) System.out.println("***Rebuilt Enron Emails***");
-    // Loop over each jumbled sentence.
-    for (JumbleProblem jProblem : jumbleProblems) {
-      List<String> correctSentence = jProblem.getCorrectSentence();
-      List<String> bestGuess = null;
-      double bestScore = Double.NEGATIVE_INFINITY;
-      double numWithBestScores = 0.0;
-      double distanceForBestScores = 0.0;
-      for (List<String> guess : jProblem.getNBestSentences()) {
-        double score = languageModel.getSentenceProbability(guess);
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (score == bestScore) {
-          numWithBestScores += 1.0;
-          distanceForBestScores += distance;
-        }
-        if (score > bestScore || bestGuess == null) {
-          bestScore = score;
-          bestGuess = guess;
-          distanceForBestScores = distance;
-          numWithBestScores = 1.0;
-        }
-      }
-      // Debugging, showing the best guess sentences
-      if( showGuesses ) {
-	for( String token : bestGuess ) System.out.print(token + " ");
-	System.out.println();
-      }
-      // If exactly correct
-      if( distanceForBestScores == 0 ) {
-	  ///if(showGuesses)
-	  //System.out.println("correct!");
-	absoluteCorrect++;
-      }
-      totalDistance += distanceForBestScores / numWithBestScores;
-      totalWords += correctSentence.size();
-      totalWER += distanceForBestScores / (numWithBestScores * correctSentence.size());
-    } // end jumbleproblem loop
-
-    if( showGuesses ) System.out.println("******");
+    JumbleEvaluation evaluation =
+      JumbleEvaluation.evaluate(languageModel, jumbleProblems, false, true);
+    if( showGuesses ) printGuesses(evaluation, jumbleProblems.size());
+    return new Pair<Double,Double>(evaluation.getWordErrorRate(),
+				   evaluation.getPercentCorrect());
+  }
 
-    //    return totalDistance / totalWords;
-    return new Pair<Double,Double>(totalWER / (double)jumbleProblems.size(), 
-				   (double)absoluteCorrect / (double)jumbleProblems.size());
+  /**
+   * Prints the highest scoring sentence of each problem.
+   */
+  private static void printGuesses(JumbleEvaluation evaluation, int numProblems) {
+    System.out.println("***Rebuilt Enron Emails***");
+    for (int p = 0; p < numProblems; p++) {
+      for( String token : evaluation.getBestGuess(p) ) System.out.print(token + " ");
+      System.out.println();
+    }
+    System.out.println("******");
   }
 
   /**
@@ -117,21 +122,7 @@ public class LanguageModelTester {
    * all problems is returned.
    */
   static double computeWordErrorRateUpperBound(List<JumbleProblem> problems) {
-    double totalDistance = 0.0;
-    double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (JumbleProblem problem : problems) {
-      List<String> correctSentence = problem.getCorrectSentence();
-      double worstDistance = Double.NEGATIVE_INFINITY;
-      for (List<String> guess : problem.getNBestSentences()) {
-        double distance = editDistance.getDistance(correctSentence, guess);
-        if (distance > worstDistance)
-          worstDistance = distance;
-      }
-      totalDistance += worstDistance;
-      totalWords += correctSentence.size();
-    }
-    return totalDistance / totalWords;
+    return JumbleEvaluation.evaluate(null, problems, true, true).getWorstPathErrorRate();
   }
 
   /**
@@ -141,22 +132,7 @@ public class LanguageModelTester {
    * the correct answer over all problems is returned.
    */
   static double computeWordErrorRateRandomChoice(List<JumbleProblem> problems) {
-    double totalDistance = 0.0;
-    double totalWords = 0.0;
-    EditDistance editDistance = new EditDistance();
-    for (JumbleProblem problem : problems) {
-      List<String> correctSentence = problem.getCorrectSentence();
-      double sumDistance = 0.0;
-      double numGuesses = 0.0;
-      for (List<String> guess : problem.getNBestSentences()) {
-        double distance = editDistance.getDistance(correctSentence, guess);
-        sumDistance += distance;
-        numGuesses += 1.0;
-      }
-      totalDistance += sumDistance / numGuesses;
-      totalWords += correctSentence.size();
-    }
-    return totalDistance / totalWords;
+    return JumbleEvaluation.evaluate(null, problems, true, true).getRandomPathErrorRate();
   }
 
   /** 
@@ -196,7 +172,15 @@ public class LanguageModelTester {
     options.put("-jumble",       "false");  // run Jumble (Enron) evaluation?
     options.put("-baselines", "true");  // compute WER baselines?
     options.put("-generate",  "true");  // generate some sentences?
+    options.put("-seed",      "0");     // seed of the generated sentences
     options.put("-check",     "true");  // check probabilities sum to 1
+    options.put("-load",      "");      // model file to load instead of training
+    options.put("-save",      "");      // model file to write after training
+    options.put("-loadarpa",  "");      // ARPA file to load instead of training
+    options.put("-savearpa",  "");      // ARPA file to write after training
+    options.put("-threads",   "1");     // threads used to count n-grams
+    options.put("-parallel",  "true");  // score and evaluate on all cores?
+    options.put("-stress",    "0");     // threads scoring at once (0: no stress test)
 
     // let command-line options supersede defaults .........................
     options.putAll(CommandLineUtils.simpleCommandLineParser(args));
@@ -238,28 +222,72 @@ public class LanguageModelTester {
     // construct model, using reflection ...................................
     System.out.println();
     LanguageModel model;
-    try {
-      @SuppressWarnings("unchecked")
-      Class modelClass = Class.forName(options.get("-model"));
-      model = (LanguageModel) modelClass.newInstance();
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    String loadFile = options.get("-load");
+    String loadArpaFile = options.get("-loadarpa");
+    if (loadArpaFile.length() > 0) {
+      long start = System.currentTimeMillis();
+      model = ArpaFile.read(loadArpaFile);
+      System.out.println("Loaded ARPA model from " + loadArpaFile +
+                         " in " + (System.currentTimeMillis() - start) + " ms\n");
+    } else if (loadFile.length() > 0) {
+      long start = System.currentTimeMillis();
+      model = ModelFile.load(loadFile);
+      System.out.println("Loaded model " + model + " from " + loadFile +
+                         " in " + (System.currentTimeMillis() - start) + " ms\n");
+    } else {
+      try {
+        @SuppressWarnings("unchecked")
+        Class modelClass = Class.forName(options.get("-model"));
+        model = (LanguageModel) modelClass.newInstance();
+        model.setTrainingThreads(Integer.parseInt(options.get("-threads")));
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+      System.out.println("Created model: " + model);
+
+      // train model .......................................................
+      System.out.print("Training model" +
+                       // trainSentences.size() is slow, because disk-backed!!!
+                       // " on " + trainSentences.size() + " sentences" +
+                       " from " + trainFile + " ... ");
+      model.train(trainSentences);
+      System.out.println("done\n");
+      if (model instanceof EMModel) {
+        EMModel em = (EMModel)model;
+        double[] lambdas = em.getWeights();
+        System.out.println("EM weights (trigram, bigram, unigram): " +
+                           lambdas[0] + ", " + lambdas[1] + ", " + lambdas[2]);
+        System.out.println("EM iterations: " + em.getIterations() +
+                           ", held-out perplexity: " + em.getHeldOutPerplexity() +
+                           "\n");
+      }
     }
-    System.out.println("Created model: " + model);
 
-    // train model .........................................................
-    System.out.print("Training model" +
-                     // trainSentences.size() is slow, because disk-backed!!!
-                     // " on " + trainSentences.size() + " sentences" +
-                     " from " + trainFile + " ... ");
-    model.train(trainSentences);
-    System.out.println("done\n");
+    String saveFile = options.get("-save");
+    if (saveFile.length() > 0) {
+      ModelFile.write(model, saveFile);
+      System.out.println("Saved model to " + saveFile + "\n");
+    }
+    String saveArpaFile = options.get("-savearpa");
+    if (saveArpaFile.length() > 0) {
+      ArpaFile.write(model, saveArpaFile);
+      System.out.println("Saved ARPA model to " + saveArpaFile + "\n");
+    }
 
     // check if the probability distribution of the model sums up properly
     if ("true".equals(options.get("-check"))) {
-      double modelsum = model.checkModel();
+      // checkModel() of a bigram or trigram model is the worst mass of
+      // a NormalizationCheck, so run the check once and use its result
+      NormalizationCheck check = null;
+      if (model instanceof TrigramModel)
+        check = NormalizationCheck.check((TrigramModel)model);
+      else if (model instanceof BigramModel)
+        check = NormalizationCheck.check((BigramModel)model);
+      double modelsum = check != null ? check.getWorstMass() : model.checkModel();
       System.err.println("Checking model "+model+"...");
       System.err.println("checkModel() returns "+modelsum);
+      if (check != null)
+        System.err.println(check);
       if (Math.abs(1.0-modelsum) > 1e-6) {
         System.err.println("WARNING: "+model+" does not sum up to one.");
         System.err.println("         Check your LM implementaion, or your checkModel() method.");
@@ -271,10 +299,18 @@ public class LanguageModelTester {
     
     // evaluate on training and test data ..................................
     NumberFormat nf = new DecimalFormat("0.0000");
+    NumberFormat rate = new DecimalFormat("0");
+    boolean parallel = "true".equals(options.get("-parallel"));
+    Pair<Double,Double> trainPerplexity =
+      computePerplexity(model, trainSentences, parallel);
     System.out.printf("%-30s","Training set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, trainSentences)));
+    System.out.println(nf.format(trainPerplexity.getFirst()) + "  (" +
+                       rate.format(trainPerplexity.getSecond()) + " tokens/sec)");
+    Pair<Double,Double> testPerplexity =
+      computePerplexity(model, testSentences, parallel);
     System.out.printf("%-30s","Test set perplexity: ");
-    System.out.println(nf.format(computePerplexity(model, testSentences)));
+    System.out.println(nf.format(testPerplexity.getFirst()) + "  (" +
+                       rate.format(testPerplexity.getSecond()) + " tokens/sec)");
 
     // evaluate on Jumble data ................................................
     if ("true".equals(options.get("-jumble"))) {
@@ -286,29 +322,60 @@ public class LanguageModelTester {
       if ("true".equals(options.get("-showguesses"))) 
 	showGuesses = true;
 
-      // Get the WER and % correct scores.
-      Pair<Double,Double> results = computeWordErrorRate(model, jumbleProblems, showGuesses);
+      // Get the WER and % correct scores, and the baselines, in one pass
+      // which computes each edit distance at most once.
+      boolean baselines = "true".equals(options.get("-baselines"));
+      JumbleEvaluation evaluation =
+	JumbleEvaluation.evaluate(model, jumbleProblems, baselines, parallel);
+      if (showGuesses) printGuesses(evaluation, jumbleProblems.size());
       System.out.printf("%-30s","Enron Word Error Rate: ");
-      System.out.println(nf.format(results.getFirst()));
+      System.out.println(nf.format(evaluation.getWordErrorRate()));
       System.out.printf("%-30s","Enron Percent Correct: ");
-      System.out.println(nf.format(100*results.getSecond()) + "%");
+      System.out.println(nf.format(100*evaluation.getPercentCorrect()) + "%");
 
-      if ("true".equals(options.get("-baselines"))) {
+      if (baselines) {
         System.out.println();
         System.out.println("Enron WER Baselines: ");
         System.out.printf("%-30s"," Worst Path: ");
-	System.out.println(nf.format(computeWordErrorRateUpperBound(jumbleProblems)));
+	System.out.println(nf.format(evaluation.getWorstPathErrorRate()));
         System.out.printf("%-30s"," Random Path: ");
-	System.out.println(nf.format(computeWordErrorRateRandomChoice(jumbleProblems)));
+	System.out.println(nf.format(evaluation.getRandomPathErrorRate()));
       }
     }
 
+    // score from many threads at once, checking every score ..............
+    int stressThreads = Integer.parseInt(options.get("-stress"));
+    if (stressThreads > 0) {
+      // the first sentences of the test set; the iterator is left before
+      // the end, so close it to release the file
+      List<List<String>> stressSentences = new ArrayList<List<String>>();
+      Iterator<List<String>> sentences = testSentences.iterator();
+      try {
+        while (sentences.hasNext() && stressSentences.size() < STRESS_SENTENCES)
+          stressSentences.add(sentences.next());
+      } finally {
+        if (sentences instanceof Closeable)
+          ((Closeable) sentences).close();
+      }
+      StressTest stress =
+        StressTest.run(model, stressSentences, stressThreads, STRESS_ROUNDS);
+      System.out.println();
+      System.out.printf("%-30s","Stress test (" + stressThreads + " threads): ");
+      System.out.println((stress.passed() ? "passed" : "FAILED") + "  (" +
+                         stress.getCalls() + " sentences, " +
+                         stress.getMismatches() + " mismatches, " +
+                         rate.format(stress.getCallsPerSecond()) + " sentences/sec)");
+      if (stress.getFailure() != null)
+        stress.getFailure().printStackTrace();
+    }
+
     // generate sentences from model .......................................
     if ("true".equals(options.get("-generate"))) {
       System.out.println();
       System.out.println("Generated sentences:");
-      for (int i = 0; i < 10; i++) {
-        System.out.println("  " + model.generateSentence());
+      long seed = Long.parseLong(options.get("-seed"));
+      for (List<String> sentence : model.generateSentences(10, seed)) {
+        System.out.println("  " + sentence);
       }
     }
 
@@ -0,0 +1,133 @@
+package cs224n.assignments;
+
+import cs224n.langmodel.LanguageModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a trained model can be shared between threads.  Every
+ * sentence is first scored on one thread; then many threads, released at
+ * once, score the sentences over and over, each in its own shuffled order,
+ * and every probability is compared, bit for bit, with the single-threaded
+ * one.  Each thread also generates a sentence now and then, so that
+ * sampling (and the caches behind it) is exercised alongside scoring.  A
+ * thread which throws stops, and its exception is kept.
+ */
+class StressTest {
+
+  // one sentence generated per this many sentences scored
+  private static final int GENERATE_EVERY = 64;
+
+  private long calls;
+  private long mismatches;
+  private double seconds;
+  private Throwable failure;
+
+  private StressTest() {
+  }
+
+  /**
+   * Runs the given number of threads, each scoring all the sentences the
+   * given number of times.
+   */
+  static StressTest run(final LanguageModel model,
+                        final List<List<String>> sentences,
+                        int threads, final int rounds) {
+    final double[] expected = new double[sentences.size()];
+    for (int i = 0; i < expected.length; i++) {
+      expected[i] = model.getSentenceProbability(sentences.get(i));
+    }
+
+    final StressTest test = new StressTest();
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong mismatches = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      Thread worker = new Thread() {
+          public void run() {
+            List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < expected.length; i++) {
+              order.add(i);
+            }
+            Random random = new Random(seed);
+            try {
+              start.await();
+              for (int round = 0; round < rounds; round++) {
+                Collections.shuffle(order, random);
+                for (int i : order) {
+                  double p = model.getSentenceProbability(sentences.get(i));
+                  if (Double.doubleToLongBits(p) !=
+                      Double.doubleToLongBits(expected[i]))
+                    mismatches.incrementAndGet();
+                  if (calls.incrementAndGet() % GENERATE_EVERY == 0)
+                    model.generateSentence();
+                }
+              }
+            } catch (Throwable e) {
+              synchronized (test) {
+                if (test.failure == null)
+                  test.failure = e;
+              }
+            }
+          }
+        };
+      workers.add(worker);
+      worker.start();
+    }
+
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    test.seconds = (System.nanoTime() - begin) / 1e9;
+    test.calls = calls.get();
+    test.mismatches = mismatches.get();
+    return test;
+  }
+
+  /**
+   * The number of sentences scored by all the threads.
+   */
+  long getCalls() {
+    return calls;
+  }
+
+  /**
+   * The number of scores which differed from the single-threaded ones.
+   */
+  long getMismatches() {
+    return mismatches;
+  }
+
+  double getCallsPerSecond() {
+    return calls / seconds;
+  }
+
+  /**
+   * The first exception thrown by a thread, or null.
+   */
+  Throwable getFailure() {
+    return failure;
+  }
+
+  /**
+   * True if every score matched, and no thread threw.
+   */
+  boolean passed() {
+    return mismatches == 0 && failure == null;
+  }
+
+}
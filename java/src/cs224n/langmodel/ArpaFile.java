@@ -0,0 +1,544 @@
+package cs224n.langmodel;
+
+import cs224n.util.LongIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Reads and writes models in the standard ARPA backoff text format, so
+ * that they can be exchanged with other toolkits (SRILM, KenLM, ...).
+ * <pre>
+ *   \data\
+ *   ngram 1=...
+ *   \1-grams:
+ *   log10 p(w)   w   log10 bo(w)
+ *   \2-grams:
+ *   log10 p(w|v)   v w   log10 bo(v w)
+ *   \3-grams:
+ *   log10 p(w|u v)   u v w
+ *   \end\
+ * </pre>
+ * The start, stop and unknown tokens are written as &lt;s&gt;, &lt;/s&gt;
+ * and &lt;unk&gt;.  <p/>
+ *
+ * UnigramModel, BigramModel and TrigramModel are absolute-discount backoff
+ * models, so they are written exactly: each listed n-gram gets its
+ * discounted probability and each context its preWordAlpha weight.  Since
+ * TrigramModel conditions the first word of a sentence on (&lt;s&gt;,
+ * &lt;s&gt;), that context is listed as a bigram with no probability of its
+ * own (-99), to carry its backoff weight.  <p/>
+ *
+ * InterpolationModel and EMModel mix the three orders linearly, which no
+ * backoff file can express exactly.  They are written the way SRILM writes
+ * mixtures: every trigram and bigram seen in training is listed with its
+ * interpolated probability (the bigram level mixing only the bigram and
+ * unigram components, renormalized), and the backoff weights are chosen
+ * so that each context still sums to one.  Only the probabilities of
+ * unseen n-grams change.  <p/>
+ *
+ * read() streams the file once into flat primitive arrays and returns a
+ * scoring-only ArpaModel.
+ */
+public class ArpaFile {
+
+    private static final String START = "<s>";
+    private static final String STOP = "</s>";
+    private static final String UNKNOWN = "<unk>";
+
+    // log10 probability written for n-grams listed only for their backoff
+    private static final double NO_PROBABILITY = -99.0;
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Writes a trained model to the given file.
+     *
+     * @throws IllegalArgumentException if the model type is not supported
+     */
+    public static void write(LanguageModel model, String filename)
+	throws IOException {
+	Estimator estimator = estimatorFor(model);
+	Writer out = new BufferedWriter
+	    (new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"), 1 << 16);
+	try {
+	    estimator.write(out);
+	} finally {
+	    out.close();
+	}
+    }
+
+    private static Estimator estimatorFor(LanguageModel model) {
+	if (model instanceof UnigramModel) {
+	    return new BackoffEstimator((UnigramModel)model, null, null);
+	} else if (model instanceof BigramModel) {
+	    BigramModel bigram = (BigramModel)model;
+	    return new BackoffEstimator(bigram.uniModel, bigram, null);
+	} else if (model instanceof TrigramModel) {
+	    TrigramModel trigram = (TrigramModel)model;
+	    BigramModel bigram = trigram.getBigramModel();
+	    return new BackoffEstimator(bigram.uniModel, bigram, trigram);
+	} else if (model instanceof InterpolationModel) {
+	    InterpolationModel m = (InterpolationModel)model;
+	    return new MixtureEstimator(m.getUnigramModel(), m.getBigramModel(),
+					m.getTrigramModel(), m.getWeights());
+	} else if (model instanceof EMModel) {
+	    EMModel m = (EMModel)model;
+	    return new MixtureEstimator(m.getUnigramModel(), m.getBigramModel(),
+					m.getTrigramModel(), m.getWeights());
+	}
+	throw new IllegalArgumentException("cannot write a " +
+					   model.getClass().getName() +
+					   " as ARPA");
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * The probabilities of the listed n-grams of a model, over one
+     * vocabulary.  The listed n-grams are those of the model's own count
+     * tables (the bigram and trigram tables may be null, for lower-order
+     * models); the backoff weights are derived from the probabilities.
+     */
+    private static abstract class Estimator {
+
+	Vocabulary vocabulary;
+	UnigramModel unigrams;
+	NgramTable bigrams;
+	NgramTable trigrams;
+
+	abstract double unigram(int word);
+
+	abstract double bigram(int word2, int word);
+
+	abstract double trigram(int word1, int word2, int word);
+
+	/**
+	 * The probability the written file gives to a bigram, listed or not.
+	 */
+	private double backedOffBigram(double[] bigramBackoff, int word2, int word) {
+	    int context = bigrams.findContext(word2);
+	    if (context < 0)
+		return unigram(word);
+	    if (bigrams.find(context, word) >= 0)
+		return bigram(word2, word);
+	    return bigramBackoff[context] * unigram(word);
+	}
+
+	void write(Writer out) throws IOException {
+	    int order = trigrams != null ? 3 : bigrams != null ? 2 : 1;
+
+	    int numUnigrams = 2;   // <s> and <unk>
+	    for (int word = 0; word < vocabulary.size(); word++) {
+		if (word != Vocabulary.UNKNOWN_ID && unigrams.getCount(word) > 0)
+		    numUnigrams++;
+	    }
+
+	    double[] bigramBackoff = null;
+	    if (bigrams != null) {
+		bigramBackoff = new double[bigrams.contextCount()];
+		for (int c = 0; c < bigramBackoff.length; c++) {
+		    int word2 = (int)bigrams.getContext(c);
+		    double sum = 0.0, denom = 1.0;
+		    for (int i = bigrams.getStart(c); i < bigrams.getEnd(c); i++) {
+			sum += bigram(word2, bigrams.getWord(i));
+			denom -= unigram(bigrams.getWord(i));
+		    }
+		    bigramBackoff[c] = (1.0 - sum) / denom;
+		}
+	    }
+
+	    // trigram contexts which are not listed bigrams, such as (<s>, <s>)
+	    LongIndex extraContexts = new LongIndex();
+	    double[] trigramBackoff = null;
+	    if (trigrams != null) {
+		trigramBackoff = new double[trigrams.contextCount()];
+		for (int c = 0; c < trigramBackoff.length; c++) {
+		    long key = trigrams.getContext(c);
+		    int word1 = Vocabulary.first(key);
+		    int word2 = Vocabulary.second(key);
+		    if (bigrams.getNgramCount(word1, word2) == 0)
+			extraContexts.add(key);
+		    double sum = 0.0, denom = 1.0;
+		    for (int i = trigrams.getStart(c); i < trigrams.getEnd(c); i++) {
+			int word = trigrams.getWord(i);
+			sum += trigram(word1, word2, word);
+			denom -= backedOffBigram(bigramBackoff, word2, word);
+		    }
+		    trigramBackoff[c] = (1.0 - sum) / denom;
+		}
+	    }
+
+	    out.write("\n\\data\\\n");
+	    out.write("ngram 1=" + numUnigrams + "\n");
+	    if (order >= 2)
+		out.write("ngram 2=" + (bigrams.size() + extraContexts.size()) + "\n");
+	    if (order >= 3)
+		out.write("ngram 3=" + trigrams.size() + "\n");
+
+	    out.write("\n\\1-grams:\n");
+	    for (int word = 0; word < vocabulary.size(); word++) {
+		double probability;
+		if (word == Vocabulary.START_ID) {
+		    probability = 0.0;
+		} else if (word == Vocabulary.UNKNOWN_ID || unigrams.getCount(word) > 0) {
+		    probability = unigram(word);
+		} else {
+		    continue;
+		}
+		int context = bigrams == null ? -1 : bigrams.findContext(word);
+		writeLine(out, probability, context < 0 ? 1.0 : bigramBackoff[context],
+			  word);
+	    }
+
+	    if (order >= 2) {
+		out.write("\n\\2-grams:\n");
+		for (int c = 0; c < bigrams.contextCount(); c++) {
+		    int word2 = (int)bigrams.getContext(c);
+		    for (int i = bigrams.getStart(c); i < bigrams.getEnd(c); i++) {
+			int word = bigrams.getWord(i);
+			writeLine(out, bigram(word2, word),
+				  trigramBackoff(trigramBackoff, word2, word),
+				  word2, word);
+		    }
+		}
+		for (int i = 0; i < extraContexts.size(); i++) {
+		    long key = extraContexts.get(i);
+		    int word1 = Vocabulary.first(key);
+		    int word2 = Vocabulary.second(key);
+		    writeLine(out, 0.0, trigramBackoff(trigramBackoff, word1, word2),
+			      word1, word2);
+		}
+	    }
+
+	    if (order >= 3) {
+		out.write("\n\\3-grams:\n");
+		for (int c = 0; c < trigrams.contextCount(); c++) {
+		    long key = trigrams.getContext(c);
+		    int word1 = Vocabulary.first(key);
+		    int word2 = Vocabulary.second(key);
+		    for (int i = trigrams.getStart(c); i < trigrams.getEnd(c); i++) {
+			int word = trigrams.getWord(i);
+			writeLine(out, trigram(word1, word2, word), 1.0,
+				  word1, word2, word);
+		    }
+		}
+	    }
+
+	    out.write("\n\\end\\\n");
+	}
+
+	private double trigramBackoff(double[] trigramBackoff, int word1, int word2) {
+	    if (trigrams == null)
+		return 1.0;
+	    int context = trigrams.findContext(Vocabulary.pack(word1, word2));
+	    return context < 0 ? 1.0 : trigramBackoff[context];
+	}
+
+	/**
+	 * Writes one n-gram line; a probability of zero is written as -99 and
+	 * a backoff weight of one is left out.
+	 */
+	private void writeLine(Writer out, double probability, double backoff,
+			       int... ngram) throws IOException {
+	    out.write(probability > 0.0 ? format(Math.log10(probability))
+		      : format(NO_PROBABILITY));
+	    for (int word : ngram) {
+		out.write('\t');
+		out.write(arpaWord(vocabulary, word));
+	    }
+	    if (backoff != 1.0) {
+		out.write('\t');
+		out.write(format(Math.log10(backoff)));
+	    }
+	    out.write('\n');
+	}
+    }
+
+    private static String format(double log10) {
+	return String.format("%.7f", log10);
+    }
+
+    private static String arpaWord(Vocabulary vocabulary, int id) {
+	switch (id) {
+	case Vocabulary.START_ID: return START;
+	case Vocabulary.STOP_ID: return STOP;
+	case Vocabulary.UNKNOWN_ID: return UNKNOWN;
+	default: return vocabulary.getWord(id);
+	}
+    }
+
+    private static String modelWord(String word) {
+	if (word.equals(START)) return Vocabulary.START;
+	if (word.equals(STOP)) return Vocabulary.STOP;
+	if (word.equals(UNKNOWN)) return Vocabulary.UNKNOWN;
+	return word;
+    }
+
+    /**
+     * The backoff models write their own probabilities.
+     */
+    private static class BackoffEstimator extends Estimator {
+
+	private UnigramModel unigramModel;
+	private BigramModel bigramModel;
+	private TrigramModel trigramModel;
+
+	BackoffEstimator(UnigramModel unigramModel, BigramModel bigramModel,
+			 TrigramModel trigramModel) {
+	    this.unigramModel = unigramModel;
+	    this.bigramModel = bigramModel;
+	    this.trigramModel = trigramModel;
+	    vocabulary = unigramModel.getVocabulary();
+	    unigrams = unigramModel;
+	    bigrams = bigramModel == null ? null : bigramModel.getTable();
+	    trigrams = trigramModel == null ? null : trigramModel.getTable();
+	}
+
+	double unigram(int word) {
+	    return unigramModel.getWordProbability(word);
+	}
+
+	double bigram(int word2, int word) {
+	    return bigramModel.getWordProbability(word2, word);
+	}
+
+	double trigram(int word1, int word2, int word) {
+	    return trigramModel.getWordProbability(word1, word2, word);
+	}
+    }
+
+    /**
+     * A linear mixture of separately trained unigram, bigram and trigram
+     * components.  The n-grams listed are those of the trigram component
+     * and its own lower orders; the components may have their own
+     * vocabularies, so word ids are translated once up front.
+     */
+    private static class MixtureEstimator extends Estimator {
+
+	private UnigramModel unigramModel;
+	private BigramModel bigramModel;
+	private TrigramModel trigramModel;
+	private double trigramWeight, bigramWeight, unigramWeight;
+	private int[] unigramIds;
+	private int[] bigramIds;
+
+	MixtureEstimator(UnigramModel unigramModel, BigramModel bigramModel,
+			 TrigramModel trigramModel, double[] weights) {
+	    this.unigramModel = unigramModel;
+	    this.bigramModel = bigramModel;
+	    this.trigramModel = trigramModel;
+	    trigramWeight = weights[0];
+	    bigramWeight = weights[1];
+	    unigramWeight = weights[2];
+
+	    vocabulary = trigramModel.getVocabulary();
+	    unigrams = trigramModel.getBigramModel().uniModel;
+	    bigrams = trigramModel.getBigramModel().getTable();
+	    trigrams = trigramModel.getTable();
+
+	    unigramIds = translate(vocabulary, unigramModel.getVocabulary());
+	    bigramIds = translate(vocabulary, bigramModel.getVocabulary());
+	}
+
+	private static int[] translate(Vocabulary from, Vocabulary to) {
+	    int[] ids = new int[from.size()];
+	    for (int id = 0; id < ids.length; id++) {
+		ids[id] = from == to ? id : to.getId(from.getWord(id));
+	    }
+	    return ids;
+	}
+
+	double unigram(int word) {
+	    return unigramModel.getWordProbability(unigramIds[word]);
+	}
+
+	double bigram(int word2, int word) {
+	    return (bigramWeight * bigramModel.getWordProbability(bigramIds[word2],
+								   bigramIds[word]) +
+		    unigramWeight * unigram(word)) / (bigramWeight + unigramWeight);
+	}
+
+	double trigram(int word1, int word2, int word) {
+	    return (trigramWeight * trigramModel.getWordProbability(word1, word2, word) +
+		    bigramWeight * bigramModel.getWordProbability(bigramIds[word2],
+								   bigramIds[word]) +
+		    unigramWeight * unigram(word));
+	}
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Reads an ARPA file of order one to three in a single pass and returns
+     * a scoring-only model.  The n-gram counts in the \data\ header size
+     * the arrays up front.
+     *
+     * @throws IOException if the file is not a well-formed ARPA file
+     */
+    public static ArpaModel read(String filename) throws IOException {
+	BufferedReader in = new BufferedReader
+	    (new InputStreamReader(new FileInputStream(filename), "UTF-8"), 1 << 16);
+	try {
+	    return read(in, filename);
+	} finally {
+	    in.close();
+	}
+    }
+
+    private static ArpaModel read(BufferedReader in, String filename)
+	throws IOException {
+	String line;
+	while ((line = in.readLine()) != null && !line.trim().equals("\\data\\"));
+	if (line == null)
+	    throw new IOException(filename + ": no \\data\\ section");
+
+	int[] sizes = new int[4];
+	int order = 0;
+	while ((line = in.readLine()) != null && line.startsWith("ngram ")) {
+	    int equals = line.indexOf('=');
+	    int n = Integer.parseInt(line.substring(6, equals).trim());
+	    if (n < 1 || n > 3)
+		throw new IOException(filename + ": cannot read " + n + "-grams");
+	    sizes[n] = Integer.parseInt(line.substring(equals + 1).trim());
+	    order = Math.max(order, n);
+	}
+	if (order == 0)
+	    throw new IOException(filename + ": no n-gram counts");
+
+	Vocabulary vocabulary = new Vocabulary();
+	int vocabularySize = Math.max(sizes[1], vocabulary.size());
+	float[] uniProb = new float[vocabularySize];
+	float[] uniBackoff = new float[vocabularySize];
+	Arrays.fill(uniProb, (float)NO_PROBABILITY);
+	long[] biKeys = new long[sizes[2]];
+	float[] biProb = new float[sizes[2]];
+	LongIndex triContexts = new LongIndex();
+	float[] triBackoff = new float[Math.max(sizes[3], 16)];
+	long[] triKeys = new long[sizes[3]];
+	float[] triProb = new float[sizes[3]];
+
+	String[] fields = new String[5];
+	int[] ids = new int[3];
+	int n = 0;
+	int count = 0;
+	while ((line = in.readLine()) != null) {
+	    if (line.length() == 0)
+		continue;
+	    if (line.charAt(0) == '\\') {
+		if (n > 0 && count != sizes[n])
+		    throw new IOException(filename + ": expected " + sizes[n] +
+					  " " + n + "-grams, found " + count);
+		if (line.startsWith("\\end\\"))
+		    break;
+		n = line.charAt(1) - '0';
+		if (n < 1 || n > order || !line.startsWith("-grams:", 2))
+		    throw new IOException(filename + ": unexpected " + line);
+		count = 0;
+		continue;
+	    }
+	    if (n == 0)
+		throw new IOException(filename + ": n-gram outside a section");
+	    int numFields = split(line, fields);
+	    if (numFields != n + 1 && numFields != n + 2)
+		throw new IOException(filename + ": malformed " + n + "-gram: " + line);
+	    if (count == sizes[n])
+		throw new IOException(filename + ": more " + n + "-grams than declared");
+	    float probability = Float.parseFloat(fields[0]);
+	    float backoff = numFields == n + 2 ? Float.parseFloat(fields[n + 1]) : 0.0f;
+	    for (int i = 0; i < n; i++) {
+		String word = modelWord(fields[i + 1]);
+		ids[i] = n == 1 ? vocabulary.addWord(word) : vocabulary.getId(word);
+		// a word missing from the unigrams would be read as the unknown
+		// word, merging distinct n-grams into one
+		if (ids[i] == Vocabulary.UNKNOWN_ID && !word.equals(Vocabulary.UNKNOWN))
+		    throw new IOException(filename + ": " + n + "-gram with a word not " +
+					  "among the 1-grams: " + line);
+	    }
+
+	    if (n == 1) {
+		int word = ids[0];
+		if (word >= uniProb.length) {
+		    int length = Math.max(word + 1, 2 * uniProb.length);
+		    uniProb = Arrays.copyOf(uniProb, length);
+		    uniBackoff = Arrays.copyOf(uniBackoff, length);
+		}
+		uniProb[word] = probability;
+		uniBackoff[word] = backoff;
+	    } else if (n == 2) {
+		biKeys[count] = Vocabulary.pack(ids[0], ids[1]);
+		biProb[count] = probability;
+		if (backoff != 0.0f) {
+		    int context = triContexts.add(biKeys[count]);
+		    if (context >= triBackoff.length)
+			triBackoff = Arrays.copyOf(triBackoff, 2 * triBackoff.length);
+		    triBackoff[context] = backoff;
+		}
+	    } else {
+		int context = triContexts.add(Vocabulary.pack(ids[0], ids[1]));
+		if (context >= triBackoff.length)
+		    triBackoff = Arrays.copyOf(triBackoff, 2 * triBackoff.length);
+		triKeys[count] = Vocabulary.pack(context, ids[2]);
+		triProb[count] = probability;
+	    }
+	    count++;
+	}
+	if (line == null)
+	    throw new IOException(filename + ": no \\end\\ marker");
+
+	int size = vocabulary.size();
+	sortByKey(biKeys, biProb);
+	sortByKey(triKeys, triProb);
+	return new ArpaModel(vocabulary, order,
+			     Arrays.copyOf(uniProb, size), Arrays.copyOf(uniBackoff, size),
+			     biKeys, biProb,
+			     triContexts, Arrays.copyOf(triBackoff, triContexts.size()),
+			     triKeys, triProb);
+    }
+
+    /**
+     * Splits a line on tabs and spaces into the given array, without a
+     * regular expression; returns the number of fields, which may be more
+     * than the array holds.
+     */
+    private static int split(String line, String[] fields) {
+	int numFields = 0;
+	int length = line.length();
+	int i = 0;
+	while (i < length) {
+	    while (i < length && Character.isWhitespace(line.charAt(i)))
+		i++;
+	    if (i == length)
+		break;
+	    int start = i;
+	    while (i < length && !Character.isWhitespace(line.charAt(i)))
+		i++;
+	    if (numFields < fields.length)
+		fields[numFields] = line.substring(start, i);
+	    numFields++;
+	}
+	return numFields;
+    }
+
+    /**
+     * Sorts the (distinct) keys, carrying the parallel values along.
+     */
+    private static void sortByKey(long[] keys, float[] values) {
+	long[] sorted = keys.clone();
+	Arrays.sort(sorted);
+	float[] moved = new float[values.length];
+	for (int i = 0; i < keys.length; i++) {
+	    moved[Arrays.binarySearch(sorted, keys[i])] = values[i];
+	}
+	System.arraycopy(sorted, 0, keys, 0, keys.length);
+	System.arraycopy(moved, 0, values, 0, values.length);
+    }
+
+}
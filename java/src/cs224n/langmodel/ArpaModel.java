@@ -0,0 +1,329 @@
+package cs224n.langmodel;
+
+import cs224n.util.LongIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A scoring-only backoff language model read from an ARPA file (see
+ * ArpaFile).  It never sees a training corpus, so train() is unsupported.
+ * All probabilities are kept as log10 floats in flat arrays: unigram
+ * probabilities and backoff weights indexed by word id, bigrams under their
+ * packed (word id, word id) key, and trigrams under a packed (context id,
+ * word id) key, where a LongIndex gives each two-word context an id that
+ * also indexes its backoff weight.  The n-gram key arrays are sorted and
+ * searched by bisection.  <p/>
+ *
+ * As in TrigramModel, the first word of a sentence is conditioned on the
+ * context (&lt;s&gt;, &lt;s&gt;); files which do not list that context
+ * simply fall back to the bigram (&lt;s&gt;, w).  Sampling goes through a
+ * WordSampler, which builds a table for each context on its first sample.
+ */
+public class ArpaModel implements IncrementalLanguageModel {
+
+    private static final double LN_10 = Math.log(10.0);
+
+    private Vocabulary vocabulary;
+    private int order;
+
+    private float[] uniProb;
+    private float[] uniBackoff;
+
+    private long[] biKeys;
+    private float[] biProb;
+
+    private LongIndex triContexts;
+    private float[] triBackoff;
+    private long[] triKeys;
+    private float[] triProb;
+
+    private WordSampler sampler;    // built on first use
+
+    // -----------------------------------------------------------------------
+
+    ArpaModel(Vocabulary vocabulary, int order,
+	      float[] uniProb, float[] uniBackoff,
+	      long[] biKeys, float[] biProb,
+	      LongIndex triContexts, float[] triBackoff,
+	      long[] triKeys, float[] triProb) {
+	this.vocabulary = vocabulary;
+	this.order = order;
+	this.uniProb = uniProb;
+	this.uniBackoff = uniBackoff;
+	this.biKeys = biKeys;
+	this.biProb = biProb;
+	this.triContexts = triContexts;
+	this.triBackoff = triBackoff;
+	this.triKeys = triKeys;
+	this.triProb = triProb;
+    }
+
+    /**
+     * ARPA models are read from a file, never trained.
+     */
+    public void train(Collection<List<String>> trainingSentences) {
+	throw new UnsupportedOperationException("ARPA models are scoring-only");
+    }
+
+    public Vocabulary getVocabulary() {
+	return vocabulary;
+    }
+
+    /**
+     * The highest n-gram order in the file.
+     */
+    public int getOrder() {
+	return order;
+    }
+
+    // -----------------------------------------------------------------------
+
+    private static int search(long[] keys, long key) {
+	int lo = 0;
+	int hi = keys.length - 1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    if (keys[mid] < key) {
+		lo = mid + 1;
+	    } else if (keys[mid] > key) {
+		hi = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Returns log10 P(word | word1 word2), backing off through the
+     * lower orders as the ARPA format prescribes.
+     */
+    public double getLog10Probability(int word1, int word2, int word) {
+	double backoff = 0.0;
+	if (order >= 3) {
+	    int context = triContexts.indexOf(Vocabulary.pack(word1, word2));
+	    if (context >= 0) {
+		int i = search(triKeys, Vocabulary.pack(context, word));
+		if (i >= 0)
+		    return triProb[i];
+		backoff += triBackoff[context];
+	    }
+	}
+	if (order >= 2) {
+	    int i = search(biKeys, Vocabulary.pack(word2, word));
+	    if (i >= 0)
+		return backoff + biProb[i];
+	    backoff += uniBackoff[word2];
+	}
+	return backoff + uniProb[word];
+    }
+
+    public double getWordProbability(int word1, int word2, int word) {
+	return Math.pow(10.0, getLog10Probability(word1, word2, word));
+    }
+
+    /**
+     * Returns the probability, according to the model, of the word specified
+     * by the argument sentence and index.  As in TrigramModel, the sentence
+     * is expected to start with two start tokens.
+     */
+    public double getWordProbability(List<String> sentence, int index) {
+	return getWordProbability(vocabulary.getId(sentence.get(index-2)),
+				  vocabulary.getId(sentence.get(index-1)),
+				  vocabulary.getId(sentence.get(index)));
+    }
+
+    /**
+     * Returns the probability, according to the model, of the specified
+     * sentence.  This is the product of the probabilities of each word in
+     * the sentence (including a final stop token).
+     */
+    public double getSentenceProbability(List<String> sentence) {
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+
+    /**
+     * Returns the (natural) log probability of the specified sentence,
+     * summed in log10 as stored and converted once.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	double log10Probability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = vocabulary.getId(w);
+	    log10Probability += getLog10Probability(word1, word2, word);
+	    word1 = word2;
+	    word2 = word;
+	}
+	log10Probability += getLog10Probability(word1, word2, Vocabulary.STOP_ID);
+	return log10Probability * LN_10;
+    }
+
+    public double getWordLogProbability(List<String> sentence, int index) {
+	int word1 = index > 1 ? vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return getLog10Probability(word1, word2, word) * LN_10;
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
+
+    public int getWordId(String word) {
+	return vocabulary.getId(word);
+    }
+
+    public String getWord(int id) {
+	return vocabulary.getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return getLog10Probability(Vocabulary.first(state),
+				   Vocabulary.second(state), word) * LN_10;
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    public int sampleWord(long state, DoubleSupplier random) {
+	return getSampler().sample(state, random);
+    }
+
+    /**
+     * The sampler of the distributions given each (packed) two-word
+     * context, over every word but the start token: the words with a
+     * unigram probability of their own, and the unknown word, sampled as
+     * -1.
+     */
+    private synchronized WordSampler getSampler() {
+	if (sampler == null) {
+	    int[] words = new int[vocabulary.size()];
+	    int n = 0;
+	    for (int word = 0; word < words.length; word++) {
+		if (word != Vocabulary.START_ID && word != Vocabulary.UNKNOWN_ID)
+		    words[n++] = word;
+	    }
+	    sampler = new WordSampler(new WordSampler.Distribution() {
+		    public double getWordProbability(long context, int word) {
+			return ArpaModel.this.getWordProbability(Vocabulary.first(context),
+								 Vocabulary.second(context),
+								 word);
+		    }
+		}, Arrays.copyOf(words, n), true);
+	}
+	return sampler;
+    }
+
+    /**
+     * checks if the probability distribution properly sums up to 1: every
+     * context the file lists is checked, in closed form (see
+     * NormalizationCheck), and the sum of the one furthest from 1 is
+     * returned.  The event space is every word but the start token.
+     */
+    public double checkModel() {
+	int size = vocabulary.size();
+	double unigramMass = 0.0;
+	for (int word = 0; word < size; word++) {
+	    if (word != Vocabulary.START_ID)
+		unigramMass += Math.pow(10.0, uniProb[word]);
+	}
+	double worst = unigramMass;
+	if (order < 2)
+	    return worst;
+
+	// the mass of the bigram distribution after each word: a word with
+	// no bigrams of its own backs off entirely
+	double[] bigramMass = new double[size];
+	for (int word = 0; word < size; word++) {
+	    bigramMass[word] = Math.pow(10.0, uniBackoff[word]) * unigramMass;
+	}
+	for (int start = 0, end; start < biKeys.length; start = end) {
+	    int word2 = Vocabulary.first(biKeys[start]);
+	    double listed = 0.0;
+	    double lower = 0.0;
+	    for (end = start; end < biKeys.length &&
+		     Vocabulary.first(biKeys[end]) == word2; end++) {
+		int word = Vocabulary.second(biKeys[end]);
+		if (word == Vocabulary.START_ID)
+		    continue;
+		listed += Math.pow(10.0, biProb[end]);
+		lower += Math.pow(10.0, uniProb[word]);
+	    }
+	    bigramMass[word2] = listed + Math.pow(10.0, uniBackoff[word2]) *
+		(unigramMass - lower);
+	    if (Math.abs(1.0 - bigramMass[word2]) > Math.abs(1.0 - worst))
+		worst = bigramMass[word2];
+	}
+	if (order < 3)
+	    return worst;
+
+	// the trigram keys are sorted by context id, so each context's
+	// trigrams follow those of the one before
+	int end = 0;
+	for (int context = 0; context < triContexts.size(); context++) {
+	    int word2 = Vocabulary.second(triContexts.get(context));
+	    double listed = 0.0;
+	    double lower = 0.0;
+	    for (; end < triKeys.length &&
+		     Vocabulary.first(triKeys[end]) == context; end++) {
+		int word = Vocabulary.second(triKeys[end]);
+		if (word == Vocabulary.START_ID)
+		    continue;
+		listed += Math.pow(10.0, triProb[end]);
+		int i = search(biKeys, Vocabulary.pack(word2, word));
+		lower += Math.pow(10.0, i >= 0 ? biProb[i]
+				  : uniBackoff[word2] + uniProb[word]);
+	    }
+	    double mass = listed + Math.pow(10.0, triBackoff[context]) *
+		(bigramMass[word2] - lower);
+	    if (Math.abs(1.0 - mass) > Math.abs(1.0 - worst))
+		worst = mass;
+	}
+	return worst;
+    }
+
+    /**
+     * Returns a random word sampled according to the model, or -1 for the
+     * unknown word.
+     */
+    private int generateWord(int word1, int word2) {
+	return getSampler().sample(Vocabulary.pack(word1, word2),
+				   ThreadLocalRandom.current()::nextDouble);
+    }
+
+    /**
+     * Returns a random sentence sampled according to the model.  We generate
+     * words until the stop token is generated, and return the concatenation.
+     */
+    public List<String> generateSentence() {
+	List<String> sentence = new ArrayList<String>();
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	int word = generateWord(word1, word2);
+	while (word != Vocabulary.STOP_ID) {
+	    if (word < 0)
+		word = Vocabulary.UNKNOWN_ID;
+	    sentence.add(word == Vocabulary.UNKNOWN_ID ? "*UNKNOWN*" : vocabulary.getWord(word));
+	    word1 = word2;
+	    word2 = word;
+	    word = generateWord(word1, word2);
+	}
+	return sentence;
+    }
+
+}
@@ -0,0 +1,63 @@
+package cs224n.langmodel;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The default implementation of LanguageModel.scoreBatch: the batch is
+ * split in halves down to slices of SLICE_SIZE sentences, and the slices are
+ * scored on the common ForkJoinPool, each into its own positions of the
+ * result array.  Scoring only reads a trained model, so models can be
+ * shared by the pool's threads.
+ */
+class BatchScorer extends RecursiveAction {
+
+    static final long serialVersionUID = 1L;
+
+    private static final int SLICE_SIZE = 256;
+
+    private LanguageModel model;
+    private List<List<String>> sentences;
+    private double[] scores;
+    private int start;
+    private int end;
+
+    private BatchScorer(LanguageModel model, List<List<String>> sentences,
+			double[] scores, int start, int end) {
+	this.model = model;
+	this.sentences = sentences;
+	this.scores = scores;
+	this.start = start;
+	this.end = end;
+    }
+
+    /**
+     * Returns the log probability of each sentence, in order.  Small batches
+     * are scored on the calling thread.
+     */
+    static double[] score(LanguageModel model, List<List<String>> sentences) {
+	double[] scores = new double[sentences.size()];
+	BatchScorer task = new BatchScorer(model, sentences, scores,
+					   0, scores.length);
+	if (scores.length <= SLICE_SIZE) {
+	    task.compute();
+	} else {
+	    ForkJoinPool.commonPool().invoke(task);
+	}
+	return scores;
+    }
+
+    protected void compute() {
+	if (end - start <= SLICE_SIZE) {
+	    for (int i = start; i < end; i++) {
+		scores[i] = model.getSentenceLogProbability(sentences.get(i));
+	    }
+	    return;
+	}
+	int mid = (start + end) >>> 1;
+	invokeAll(new BatchScorer(model, sentences, scores, start, mid),
+		  new BatchScorer(model, sentences, scores, mid, end));
+    }
+
+}
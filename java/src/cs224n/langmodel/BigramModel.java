@@ -1,36 +1,105 @@
 package cs224n.langmodel;
 
 import cs224n.util.Counter;
-import cs224n.util.CounterMap;
+import cs224n.util.LongCounter;
+import cs224n.util.LongIndex;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 
 /**
- * A language model -- uses bigram counts
+ * A language model -- uses bigram counts.  Bigrams are counted by the ids
+ * of their two words, packed into one long key (see Vocabulary.pack).  At
+ * the end of training the counts are frozen into a read-only NgramTable,
+ * and the backoff weights live in an array parallel to its contexts.  <p/>
+ *
+ * The table, the weights and the unigram counts they were computed from
+ * are kept in one immutable State, which update() replaces with a single
+ * (volatile) write, so scoring from other threads goes on, consistently,
+ * while the model is updated.
  */
-public class BigramModel implements LanguageModel {
+public class BigramModel implements IncrementalLanguageModel {
     
-    private static final String START= "<S>";
-    private static final String STOP = "</S>";
-    
-    private CounterMap<String, String> wordCounter;
-    private Counter<String> totalMap;
     public UnigramModel uniModel;
-    private HashMap<String, Double> preWordAlpha;
     private double discount = .75;
+    private int threads = 1;
+    private volatile State current;
+    private volatile boolean readOnly;
+
+    /**
+     * The bigram counts and backoff weights, with the unigram state they
+     * back off to.
+     */
+    static class State {
+	final Vocabulary vocabulary;
+	final NgramTable table;
+	final DoubleBuffer preWordAlpha;
+	final UnigramModel.State lower;
+	final double discount;
+	private WordSampler sampler;    // built on first use
+
+	State(UnigramModel.State lower, NgramTable table,
+	      DoubleBuffer preWordAlpha, double discount) {
+	    this.vocabulary = lower.vocabulary;
+	    this.lower = lower;
+	    this.table = table;
+	    this.preWordAlpha = preWordAlpha;
+	    this.discount = discount;
+	}
+
+	double getWordProbability(int preword, int word) {
+	    int context = table.findContext(preword);
+	    if (context < 0)                // unseen context
+		return lower.getWordProbability(word);
+	    int count = table.getCount(context, word);
+	    if (count == 0) {               // unknown word
+		return preWordAlpha.get(context) * lower.getWordProbability(word);
+	    }
+	    return (count - discount) / table.getTotal(context);
+	}
+
+	synchronized WordSampler getSampler() {
+	    if (sampler == null) {
+		sampler = new WordSampler(new WordSampler.Distribution() {
+			public double getWordProbability(long context, int word) {
+			    return State.this.getWordProbability((int)context, word);
+			}
+		    }, WordSampler.seenWords(lower), table, discount,
+		    lower.getSampler());
+	    }
+	    return sampler;
+	}
+    }
     // -----------------------------------------------------------------------
     
     /**
      * Constructs a new, empty unigram language model.
      */
     public BigramModel() {
-	uniModel = new UnigramModel();
-	wordCounter = new CounterMap<String, String>();
-	totalMap = new Counter<String>();
-	preWordAlpha = new HashMap<String, Double>();
+	this(new Vocabulary());
+    }
+    
+    /**
+     * Constructs a new, empty bigram language model which assigns word ids
+     * from the given vocabulary.
+     */
+    public BigramModel(Vocabulary vocabulary) {
+	uniModel = new UnigramModel(vocabulary);
+	current = new State(uniModel.getState(),
+			    new NgramTable(new LongIndex(), new LongCounter()),
+			    DoubleBuffer.allocate(0), discount);
+    }
+    
+    /**
+     * Rebuilds a trained model from its parts (see ModelFile).
+     */
+    BigramModel(Vocabulary vocabulary, UnigramModel uniModel,
+		NgramTable table, DoubleBuffer preWordAlpha) {
+	this.uniModel = uniModel;
+	current = new State(uniModel.getState(), table, preWordAlpha, discount);
     }
     
     /**
@@ -54,65 +123,146 @@ public class BigramModel implements LanguageModel {
      * collection of sentences are compiled.
      */
     public void train(Collection<List<String>> sentences) {
-	uniModel.train(sentences);
-
-	wordCounter = new CounterMap<String, String>();
-	for (List<String> sentence : sentences) {
-	    List<String> stoppedSentence = new ArrayList<String>(sentence);
-	    stoppedSentence.add(0, START);
-	    stoppedSentence.add(STOP);
-	    for(int i = 1; i < stoppedSentence.size(); i++){
-		wordCounter.incrementCount(stoppedSentence.get(i-1),
-					   stoppedSentence.get(i),
-					   1.0);
-	    }
-	}
-	for(String word : wordCounter.keySet()){
-	    totalMap.setCount(word, wordCounter.getCounter(word).totalCount());
-	}
-	
-	for(String firstWord : wordCounter.keySet()){
-	    Counter<String> secondWords = wordCounter.getCounter(firstWord);
-	    int firstTotal = (int)secondWords.totalCount();	
+	checkWritable();
+	train(new NgramCounts(current.vocabulary, 2, sentences, threads));
+    }
+    
+    /**
+     * Trains the model, and the unigram model it backs off to, from counts
+     * gathered by an NgramCounts, whose vocabulary the model adopts.  The
+     * frozen bigram table is shared with any other model trained from the
+     * same counts.
+     */
+    public void train(NgramCounts ngramCounts) {
+	checkWritable();
+	uniModel.train(ngramCounts);
+	current = computeState(uniModel.getState(), ngramCounts.getBigramTable());
+    }
+
+    /**
+     * Adds the counts of more sentences to a trained model, as if it had
+     * been trained on them too.  The model (and its unigram model) keeps
+     * answering queries while it is updated, from its old counts until the
+     * update is complete, and from the new counts after.
+     */
+    public synchronized void update(Collection<List<String>> sentences) {
+	checkWritable();
+	update(new NgramCounts(current.vocabulary.copy(), 2, sentences, threads));
+    }
+
+    /**
+     * Adds counts gathered by an NgramCounts to the model's counts (see
+     * UnigramModel.update).  The new bigrams are merged into the table.
+     * Every backoff weight is computed again, not only those of the
+     * contexts the new counts touch: a weight depends on the unigram
+     * probabilities of the context's successors, and those all change with
+     * the unigram total.
+     */
+    public synchronized void update(NgramCounts added) {
+	checkWritable();
+	NgramTable table = current.table.merge(added.getBigramTable());
+	uniModel.update(added);
+	current = computeState(uniModel.getState(), table);
+    }
+
+    private State computeState(UnigramModel.State lower, NgramTable table) {
+	double[] alpha = new double[table.contextCount()];
+	for (int context = 0; context < alpha.length; context++) {
+	    double firstTotal = table.getTotal(context);
 	    double sum = 0.0;
 	    double denom = 1.0;
 
-	    for(String secondWord: secondWords.keySet()){
-		sum += (secondWords.getCount(secondWord) - discount) / firstTotal;
-		denom -= uniModel.getWordProbability(secondWord);
+	    for (int i = table.getStart(context); i < table.getEnd(context); i++) {
+		sum += (table.getCount(i) - discount) / firstTotal;
+		denom -= lower.getWordProbability(table.getWord(i));
 	    }
 	   
-	    preWordAlpha.put(firstWord, (1 - sum) / denom);
+	    alpha[context] = (1 - sum) / denom;
 	}
+	return new State(lower, table, DoubleBuffer.wrap(alpha), discount);
     }
     
     
     // -----------------------------------------------------------------------
   
+    /**
+     * Makes the model, and the unigram model it backs off to, read-only
+     * (see UnigramModel.setReadOnly).
+     */
+    public void setReadOnly() {
+	readOnly = true;
+	uniModel.setReadOnly();
+    }
+
+    public boolean isReadOnly() {
+	return readOnly;
+    }
+
+    /**
+     * Sets the number of threads used to count a corpus (see
+     * LanguageModel.setTrainingThreads), for this model and the models it
+     * backs off to.
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+	uniModel.setTrainingThreads(threads);
+    }
+
+    private void checkWritable() {
+	if (readOnly)
+	    throw new IllegalStateException("model is read-only");
+    }
+    
+    State getState() {
+	return current;
+    }
+
+    public Vocabulary getVocabulary() {
+	return current.vocabulary;
+    }
+
+    NgramTable getTable() {
+	return current.table;
+    }
+
+    DoubleBuffer getAlphas() {
+	return current.preWordAlpha.duplicate();
+    }
+
+    /**
+     * Returns the successors of preword with their counts.
+     */
     public Counter<String> getCounter(String preword){
-	return wordCounter.getCounter(preword);
+	State s = current;
+	NgramTable table = s.table;
+	Vocabulary vocabulary = s.vocabulary;
+	Counter<String> counter = new Counter<String>();
+	int context = table.findContext(vocabulary.getId(preword));
+	if (context < 0)
+	    return counter;
+	for (int i = table.getStart(context); i < table.getEnd(context); i++) {
+	    counter.setCount(vocabulary.getWord(table.getWord(i)),
+			     table.getCount(i));
+	}
+	return counter;
     }
 
     public double getCount(String preword, String word) {
-	Counter<String> counter = wordCounter.getCounter(preword);
-        return counter.getCount(word);
+	State s = current;
+	return s.table.getNgramCount(s.vocabulary.getId(preword),
+				     s.vocabulary.getId(word));
     }
 
+    public double getWordProbability(int preword, int word) {
+	return current.getWordProbability(preword, word);
+    }
 
     public double getWordProbability(String preword, String word) {
-	Counter<String> counter = wordCounter.getCounter(preword);
-	double count = counter.getCount(word);
-	double total = totalMap.getCount(preword);
-	double ret = 0;
-	if (count == 0) {                   // unknown word
-	    ret = (preWordAlpha.containsKey(preword) ? preWordAlpha.get(preword) : 1) * uniModel.getWordProbability(word);// System.out.println("UNKNOWN WORD: " + sentence.get(index));
-	    //	    System.out.println("in here: " + ret);
-	}
-	else
-	    ret = (count - discount) / total;
-	//	if(ret < 0 && count == 0)
-	//  System.out.println(ret + " " + count + " " + discount + " " + total + " " + preWordAlpha.get(preword) + " " + preword + " " + word + " " + uniModel.getWordProbability(word));
-	return ret;
+	State s = current;
+	return s.getWordProbability(s.vocabulary.getId(preword),
+				    s.vocabulary.getId(word));
     }
     
     /**
@@ -133,52 +283,80 @@ public class BigramModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 1; index < stoppedSentence.size(); index++) {
-	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	State s = current;
+	double logProbability = 0.0;
+	int preword = Vocabulary.START_ID;
+	for (String word : sentence) {
+	    int id = s.vocabulary.getId(word);
+	    logProbability += Math.log(s.getWordProbability(preword, id));
+	    preword = id;
 	}
-	return probability;
+	logProbability += Math.log(s.getWordProbability(preword, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	State s = current;
+	int preword = index > 0 ? s.vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? s.vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(s.getWordProbability(preword, word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the id
+    // of the last word
+
+    public int getWordId(String word) {
+	return current.vocabulary.getId(word);
+    }
+
+    public String getWord(int id) {
+	return current.vocabulary.getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.START_ID;
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability((int)state, word));
+    }
+
+    public long nextState(long state, int word) {
+	return word;
+    }
+
+    public int sampleWord(long state, DoubleSupplier random) {
+	return current.getSampler().sample(state, random);
     }
     
     /**
-     * checks if the probability distribution properly sums up to 1
+     * checks if the probability distribution properly sums up to 1: every
+     * context is checked (see NormalizationCheck), and the sum of the one
+     * furthest from 1 is returned
      */
     public double checkModel() {
-	double sum = 0.0;
-	int check = 10;
-	int size = wordCounter.keySet().size();
-	Object[] Words = (wordCounter.keySet()).toArray();
-
-	for(int i = 0; i < check; i++){
-	    int num = (int)(Math.random() * size);
-	    String preword = (String)Words[num];
-	    for(String word : uniModel.wordCounter.keySet())
-		sum += getWordProbability(preword, word);
-	    sum += getWordProbability(preword, "*UNK*");
-	}	
-	return sum/check;
+	return NormalizationCheck.check(this).getWorstMass();
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, in constant time
+     * once the context has been sampled from before (see WordSampler).
      */
     public String generateWord(String preword) {
-	//System.out.println(preword);
-	double sample = Math.random();
-	double sum = 0.0;
-	Counter<String> subList = wordCounter.getCounter(preword);
-	for (String word : uniModel.wordCounter.keySet()) {
-	    sum += getWordProbability(preword, word);//subList.getCount(word) / subList.totalCount();
-	    if (sum > sample) {
-		return word;
-	    }
-	}
-	return "*UNKNOWN*";   // a little probability mass was reserved for unknowns
+	State s = current;
+	int id = s.getSampler().sample(s.vocabulary.getId(preword),
+				       ThreadLocalRandom.current()::nextDouble);
+	return id < 0 ? "*UNKNOWN*" : s.vocabulary.getWord(id);
     }
     
     /**
@@ -186,15 +364,16 @@ public class BigramModel implements LanguageModel {
      * words until the stop token is generated, and return the concatenation.
      */
     public List<String> generateSentence() {
+	State s = current;
+	WordSampler sampler = s.getSampler();
+	DoubleSupplier random = ThreadLocalRandom.current()::nextDouble;
 	List<String> sentence = new ArrayList<String>();
-	String word = generateWord(START);
-	while (!word.equals(STOP)) {
-	    sentence.add(word);
-	    word = generateWord(word);
+	int word = sampler.sample(Vocabulary.START_ID, random);
+	while (word != Vocabulary.STOP_ID) {
+	    sentence.add(word < 0 ? "*UNKNOWN*" : s.vocabulary.getWord(word));
+	    word = sampler.sample(word < 0 ? Vocabulary.UNKNOWN_ID : word, random);
 	}
 	return sentence;
     }
     
 }
-
-
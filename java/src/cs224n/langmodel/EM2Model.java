@@ -6,15 +6,17 @@ import cs224n.langmodel.TrigramModel;
 
 import cs224n.util.Counter;
 import cs224n.util.CounterMap;
+import cs224n.util.HashSplit;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.Collection;
 import java.util.List;
-import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 /**
  * A language model -- uses bigram counts
  */
-public class EM2Model implements LanguageModel {
+public class EM2Model implements IncrementalLanguageModel {
     
     private static final String START= "<S>";
     private static final String STOP = "</S>";
@@ -23,11 +25,10 @@ public class EM2Model implements LanguageModel {
     private BigramModel Bigram;
     private TrigramModel Trigram;
     
-    private UnigramModel UnigramHeldout;
-    private BigramModel BigramHeldout;
     private TrigramModel TrigramHeldout;
 
-    private double[] Lambdas = {0.7, 0.2, 0.1};
+    private volatile double[] Lambdas = {0.7, 0.2, 0.1};
+    private int threads = 1;
 
     private String wordPrint = null;
 
@@ -37,12 +38,10 @@ public class EM2Model implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public EM2Model() {
-	Unigram = new UnigramModel();
-	Bigram = new BigramModel();
 	Trigram = new TrigramModel();
+	Bigram = Trigram.getBigramModel();
+	Unigram = Bigram.uniModel;
 
-	UnigramHeldout = new UnigramModel();
-	BigramHeldout = new BigramModel();
 	TrigramHeldout = new TrigramModel();
 	
 
@@ -62,6 +61,16 @@ public class EM2Model implements LanguageModel {
 	    
     // -----------------------------------------------------------------------
     
+    /**
+     * Sets the number of threads used to count the training and held-out
+     * data (see LanguageModel.setTrainingThreads).
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+    }
+
     /**
      * Constructs a unigram language model from a collection of sentences.  A
      * special stop token is appended to each sentence, and then the
@@ -70,41 +79,30 @@ public class EM2Model implements LanguageModel {
      */
     public void train(Collection<List<String>> sentences) {
 		
-	int size = sentences.size();
-	int training = (int)(size * 0.8);
-	int heldOut = size - training;
-	Collection<List<String> > trainingSentences = new ArrayList<List<String>>();
-	Collection<List<String> > heldOutSentences = new ArrayList<List<String>>();
-	int i = 0;
-	for(Iterator it=sentences.iterator(); it.hasNext(); ){
-	    List<String> element = (List<String>)it.next();
-	    if(i <= training){
-		trainingSentences.add(element);
-	    } else {
-		heldOutSentences.add(element);
-	    }
-	    i++;
-	}
+	// hold out one sentence in five, chosen by a hash of its position
+	// (see HashSplit), and count each part in a pass of its own, with
+	// the threads set by setTrainingThreads; the component models all
+	// share the training counts, and the held-out part is counted with a
+	// copy of the trained vocabulary, so words seen only in it stay
+	// unknown to the components
+	HashSplit<List<String>> split = new HashSplit<List<String>>(sentences, 5);
+	Trigram.train(new NgramCounts(new Vocabulary(), 3, split.getOtherFolds(0),
+				      threads));
+	NgramCounts heldOutCounts =
+	    new NgramCounts(Trigram.getVocabulary().copy(), 3, split.getFold(0),
+			    threads);
 
-	Unigram.train(trainingSentences);
-	Bigram.train(trainingSentences);
-	Trigram.train(trainingSentences);
-	
-	UnigramHeldout.train(heldOutSentences);
-	BigramHeldout.train(heldOutSentences);
-	TrigramHeldout.train(heldOutSentences);
+	TrigramHeldout.train(heldOutCounts);
 
-	CounterMap<String, String> triC = Trigram.getCounterMap();
+	List<String[]> contexts = Trigram.getContexts();
 	
 	double[] coefTots = {0.0, 0.0, 0.0};
-	Set<String> keys = triC.keySet();
 	System.out.println("");
-	System.out.println("Total Trigrams: " + triC.keySet().size());
+	System.out.println("Total Trigrams: " + contexts.size());
 	int countThrough = 0;
 	System.out.print("Progress");
-	for(String key : keys)
+	for(String[] wordParts : contexts)
 	{
-	    String[] wordParts = Trigram.split(key);
 	    if(wordParts.length != 2) continue;
 	    double[] tempC = getCoefs(wordParts[0], wordParts[1]);
 	    if(tempC == null) continue;
@@ -120,9 +118,9 @@ public class EM2Model implements LanguageModel {
 
 	double tot = coefTots[0] + coefTots[1] + coefTots[2];
 
-	Lambdas[0] = coefTots[0] / tot;
-	Lambdas[1] = coefTots[1] / tot;
-	Lambdas[2] = coefTots[2] / tot;
+	// a new array, so that a reader sees the old weights or the new
+	Lambdas = new double[] {coefTots[0] / tot, coefTots[1] / tot,
+				coefTots[2] / tot};
 	
 	//Scale
 	
@@ -225,10 +223,10 @@ public class EM2Model implements LanguageModel {
      * before.
      */
     public double getWordProbability(List<String> sentence, int index) {
-	
-	return Lambdas[0] * Trigram.getWordProbability(sentence, index) +
-	    Lambdas[1] * Bigram.getWordProbability(sentence, index) + 
-	    Lambdas[2] * Unigram.getWordProbability(sentence, index);
+	double[] weights = Lambdas;
+	return weights[0] * Trigram.getWordProbability(sentence, index) +
+	    weights[1] * Bigram.getWordProbability(sentence, index) + 
+	    weights[2] * Unigram.getWordProbability(sentence, index);
     }
     
     /**
@@ -237,15 +235,85 @@ public class EM2Model implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 2; index < stoppedSentence.size(); index++) {
-     	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     * The components share one vocabulary, so each word is looked up once.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	double logProbability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = vocabulary.getId(w);
+	    logProbability += Math.log(getWordProbability(word1, word2, word));
+	    word1 = word2;
+	    word2 = word;
 	}
-	return probability;
+	logProbability += Math.log(getWordProbability(word1, word2, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	int word1 = index > 1 ? vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(getWordProbability(word1, word2, word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
+
+    public int getWordId(String word) {
+	return Trigram.getVocabulary().getId(word);
+    }
+
+    public String getWord(int id) {
+	return Trigram.getVocabulary().getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(Vocabulary.first(state),
+					   Vocabulary.second(state), word));
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    /**
+     * Samples the mixture: one draw picks a component, with the weights as
+     * its probabilities, and the component's sampler (see WordSampler)
+     * draws the word from its own distribution given the context.
+     */
+    public int sampleWord(long state, DoubleSupplier random) {
+	double[] weights = Lambdas;
+	double sample = random.getAsDouble();
+	if (sample < weights[0])
+	    return Trigram.sampleWord(state, random);
+	if (sample < weights[0] + weights[1])
+	    return Bigram.sampleWord(Vocabulary.second(state), random);
+	return Unigram.sampleWord(0L, random);
+    }
+    
+    private double getWordProbability(int word1, int word2, int word) {
+	double[] weights = Lambdas;           // one set, even during train()
+	return weights[0] * Trigram.getWordProbability(word1, word2, word) +
+	    weights[1] * Bigram.getWordProbability(word2, word) +
+	    weights[2] * Unigram.getWordProbability(word);
     }
     
     /**
@@ -256,13 +324,17 @@ public class EM2Model implements LanguageModel {
 		Trigram.checkModel())/ 3.0;
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, picking a
+     * component as sampleWord does.
      */
     public String generateWord(String prewordTwo, String prewordOne) {
-	return Trigram.generateWord(prewordTwo, prewordOne);
+	double[] weights = Lambdas;
+	double sample = ThreadLocalRandom.current().nextDouble();
+	if (sample < weights[0])
+	    return Trigram.generateWord(prewordTwo, prewordOne);
+	if (sample < weights[0] + weights[1])
+	    return Bigram.generateWord(prewordOne);
+	return Unigram.generateWord();
     }
     
     /**
@@ -4,17 +4,16 @@ import cs224n.langmodel.UnigramModel;
 import cs224n.langmodel.BigramModel;
 import cs224n.langmodel.TrigramModel;
 
-import cs224n.util.Counter;
-import cs224n.util.CounterMap;
+import cs224n.util.HashSplit;
 import java.util.ArrayList;
-import java.util.Set;
 import java.util.Collection;
 import java.util.List;
-import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 /**
  * A language model -- uses bigram counts
  */
-public class EMModel implements LanguageModel {
+public class EMModel implements IncrementalLanguageModel {
     
     private static final String START= "<S>";
     private static final String STOP = "</S>";
@@ -22,14 +21,11 @@ public class EMModel implements LanguageModel {
     private UnigramModel Unigram;
     private BigramModel Bigram;
     private TrigramModel Trigram;
-    
-    private UnigramModel UnigramHeldout;
-    private BigramModel BigramHeldout;
-    private TrigramModel TrigramHeldout;
-
-    private double[] Lambdas = {0.7, 0.2, 0.1};
 
-    private String wordPrint = null;
+    private volatile double[] Lambdas = {0.7, 0.2, 0.1};
+    private int threads = 1;
+    private int iterations;
+    private double heldOutPerplexity = Double.NaN;
 
     // -----------------------------------------------------------------------
     
@@ -37,13 +33,21 @@ public class EMModel implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public EMModel() {
-	Unigram = new UnigramModel();
-	Bigram = new BigramModel();
 	Trigram = new TrigramModel();
-
-	UnigramHeldout = new UnigramModel();
-	BigramHeldout = new BigramModel();
-	TrigramHeldout = new TrigramModel();
+	Bigram = Trigram.getBigramModel();
+	Unigram = Bigram.uniModel;
+    }
+    
+    /**
+     * Rebuilds a trained model from its components and weights (see
+     * ModelFile).  The weights are in trigram, bigram, unigram order.
+     */
+    EMModel(UnigramModel unigram, BigramModel bigram,
+	    TrigramModel trigram, double[] weights) {
+	Unigram = unigram;
+	Bigram = bigram;
+	Trigram = trigram;
+	Lambdas = weights;
     }
     
     /**
@@ -59,6 +63,16 @@ public class EMModel implements LanguageModel {
 	    
     // -----------------------------------------------------------------------
     
+    /**
+     * Sets the number of threads used to count the training and held-out
+     * data (see LanguageModel.setTrainingThreads).
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+    }
+
     /**
      * Constructs a unigram language model from a collection of sentences.  A
      * special stop token is appended to each sentence, and then the
@@ -67,151 +81,62 @@ public class EMModel implements LanguageModel {
      */
     public void train(Collection<List<String>> sentences) {
 		
-	int size = sentences.size();
-	int training = (int)(size * 0.8);
-	int heldOut = size - training;
-	Collection<List<String> > trainingSentences = new ArrayList<List<String>>();
-	Collection<List<String> > heldOutSentences = new ArrayList<List<String>>();
-	int i = 0;
-	for(Iterator it=sentences.iterator(); it.hasNext(); ){
-	    List<String> element = (List<String>)it.next();
-	    if(i <= training){
-		trainingSentences.add(element);
-	    } else {
-		heldOutSentences.add(element);
-	    }
-	    i++;
-	}
-
-	Unigram.train(trainingSentences);
-	Bigram.train(trainingSentences);
-	Trigram.train(trainingSentences);
-	
-	UnigramHeldout.train(heldOutSentences);
-	BigramHeldout.train(heldOutSentences);
-	TrigramHeldout.train(heldOutSentences);
+	// hold out one sentence in five, chosen by a hash of its position
+	// (see HashSplit), and count each part in a pass of its own, with
+	// the threads set by setTrainingThreads; the component models all
+	// share the training counts, and the held-out part is counted with a
+	// copy of the trained vocabulary, so words seen only in it stay
+	// unknown to the components
+	HashSplit<List<String>> split = new HashSplit<List<String>>(sentences, 5);
+	Trigram.train(new NgramCounts(new Vocabulary(), 3, split.getOtherFolds(0),
+				      threads));
+	NgramCounts heldOutCounts =
+	    new NgramCounts(Trigram.getVocabulary().copy(), 3, split.getFold(0),
+			    threads);
 
-	CounterMap<String, String> triC = Trigram.getCounterMap();
-	
-	double[] coefTots = {0.0, 0.0, 0.0};
-	Set<String> keys = triC.keySet();
-	System.out.println("");
-	System.out.println("Total Trigrams: " + triC.keySet().size());
-	int countThrough = 0;
-	System.out.print("Progress");
-	for(String key : keys)
-	{
-	    //System.out.println(key);
-	    String[] wordParts = Trigram.split(key);
-	    if(wordParts.length != 2) continue;
-	    double[] tempC = getCoefs(wordParts[0], wordParts[1]);
-	    if(tempC == null) continue;
-	    countThrough++;
-	    if(countThrough % 10000 == 0){
-		System.out.print(".");
-	    }
-	    coefTots[0] += tempC[0];
-	    coefTots[1] += tempC[1];
-	    coefTots[2] += tempC[2];
-	    break;
-	}
-
-	double tot = coefTots[0] + coefTots[1] + coefTots[2];
-
-	Lambdas[0] = coefTots[0] / tot;
-	Lambdas[1] = coefTots[1] / tot;
-	Lambdas[2] = coefTots[2] / tot;
-	
-	//Scale
-	
-	System.out.println("\n=====LAMBDAS=====");
-	System.out.println("Lambda 1: " + Lambdas[0]);
-	System.out.println("Lambda 2: " + Lambdas[1]);
-	System.out.println("Lambda 3: " + Lambdas[2]);
+	// EM on the held-out trigrams, each scored once by each component
+	InterpolationEM em = new InterpolationEM(Trigram,
+						 heldOutCounts.getTrigramTable());
+	Lambdas = em.estimate(Lambdas);
+	iterations = em.getIterations();
+	heldOutPerplexity = Math.exp(-em.getLogLikelihood(Lambdas) /
+				     em.getTokenCount());
+    }
+    
+    UnigramModel getUnigramModel() {
+	return Unigram;
     }
 
-    private double[] getCoefs(String wordN2, String wordN1)
-    {
-	double[] coefs = {0.7, 0.2, 0.1};
-	Counter<String> trainCount = Trigram.getCounter(wordN2, wordN1);
-	double totalCount = trainCount.totalCount();
-	int runTimes = 10;
-	Counter<String> heldoutCount = TrigramHeldout.getCounter(wordN2,
-								 wordN1);
-	/*
-	  heldoutCount.incrementCount(Trigram.concatStrings(wordN2,
-							  wordN1),
-				    1.0);
-	*/
-	boolean print = false;
-	if(heldoutCount.keySet().size() == 0){
-	    runTimes = 1;
-	    heldoutCount = Bigram.getCounter(wordN1);
-	}
-	
-	for(int i = 0; i < runTimes; i++) {
-	    //System.out.println("i: " + i);
-	    //Trigram Expected
-	    double TriExpected = 0.0;
-	    double BiExpected = 0.0;
-	    double UniExpected = 0.0;
-
-	    double liklihood = 0.0;
-	    for(String word : heldoutCount.keySet()){
-		double TriP = coefs[0]*trainCount.getCount(word)/totalCount;
-		double BiP =  coefs[1]*Bigram.getWordProbability(wordN1, word);
-		double UniP = coefs[2]*Unigram.getWordProbability(word);
-
-		liklihood += Math.pow(TriP + BiP + UniP,heldoutCount.getCount(word));
+    BigramModel getBigramModel() {
+	return Bigram;
+    }
 
-		
-		double TriYP = TriP / (TriP + BiP + UniP);
-		double BiYP = BiP / (TriP + BiP + UniP);
-		double UniYP = UniP / (TriP + BiP + UniP);
-		
-		TriExpected += heldoutCount.getCount(word) * TriYP;
-		BiExpected += heldoutCount.getCount(word) * BiYP;
-		UniExpected += heldoutCount.getCount(word) * UniYP;
-		if(!print) continue;
-		if(wordPrint == null){
-		    if(TriP > 0){
-			wordPrint = word;
-		    }
-		} else if(wordPrint.equals(word)){ 
-		    System.out.println(" =======WORD =========== ");
-		    System.out.println("Word: " + word);
-		    System.out.println("HO Count: " + heldoutCount.getCount(word));
-		    System.out.println("Tri Prob: " + TriP);
-		    System.out.println("Bi  Prob: " + BiP);
-		    System.out.println("Uni Prob: " + UniP);
-		    System.out.println("Prob From Tri: " + TriYP);
-		    System.out.println("Prob From Bi : " + BiYP);
-		    System.out.println("Prob From Uni: " + UniYP);
-		    System.out.println("Exp From Tri: " + heldoutCount.getCount(word) * TriYP);
-		    System.out.println("Exp From Bi : " + heldoutCount.getCount(word) * BiYP);
-		    System.out.println("Exp From Uni: " + heldoutCount.getCount(word) * UniYP);
-		}
-	    }
-	    double TotalExpected = TriExpected + BiExpected + UniExpected;
-	    if(TotalExpected > 0){
-		coefs[0] = TriExpected / TotalExpected;
-		coefs[1] = BiExpected / TotalExpected;
-		coefs[2] = UniExpected / TotalExpected;
-	    }
-	    if(print){
-		System.out.println(" ======ITER " + i + "=====" );
-		System.out.println("Liklihood :" + liklihood);
-      		System.out.println("Lambda 1: " + coefs[0]);
-		System.out.println("Lambda 2: " + coefs[1]);
-		System.out.println("Lambda 3: " + coefs[2]);
-	    }
-	}
-	return coefs;
+    TrigramModel getTrigramModel() {
+	return Trigram;
     }
 
+    /**
+     * Returns the interpolation weights, in trigram, bigram, unigram order.
+     */
+    public double[] getWeights() {
+	return Lambdas.clone();
+    }
 
+    /**
+     * Returns the number of EM iterations the last train() took, or 0 if
+     * the model was not trained here (but read from a model file, say).
+     */
+    public int getIterations() {
+	return iterations;
+    }
 
-    
+    /**
+     * Returns the perplexity of the held-out data under the weights found
+     * by the last train(), or NaN if the model was not trained here.
+     */
+    public double getHeldOutPerplexity() {
+	return heldOutPerplexity;
+    }
     
     // -----------------------------------------------------------------------
     /**
@@ -221,9 +146,10 @@ public class EMModel implements LanguageModel {
      * before.
      */
     public double getWordProbability(List<String> sentence, int index) {
-	return Lambdas[0] * Trigram.getWordProbability(sentence, index) +
-	    Lambdas[1] * Bigram.getWordProbability(sentence, index) + 
-	    Lambdas[2] * Unigram.getWordProbability(sentence, index);
+	double[] weights = Lambdas;
+	return weights[0] * Trigram.getWordProbability(sentence, index) +
+	    weights[1] * Bigram.getWordProbability(sentence, index) + 
+	    weights[2] * Unigram.getWordProbability(sentence, index);
     }
 
     public double getWordProbabilityTest(List<String> sentence, int index) {
@@ -243,15 +169,85 @@ public class EMModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 2; index < stoppedSentence.size(); index++) {
-     	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     * The components share one vocabulary, so each word is looked up once.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	double logProbability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = vocabulary.getId(w);
+	    logProbability += Math.log(getWordProbability(word1, word2, word));
+	    word1 = word2;
+	    word2 = word;
 	}
-	return probability;
+	logProbability += Math.log(getWordProbability(word1, word2, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	int word1 = index > 1 ? vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(getWordProbability(word1, word2, word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
+
+    public int getWordId(String word) {
+	return Trigram.getVocabulary().getId(word);
+    }
+
+    public String getWord(int id) {
+	return Trigram.getVocabulary().getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(Vocabulary.first(state),
+					   Vocabulary.second(state), word));
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    /**
+     * Samples the mixture: one draw picks a component, with the weights as
+     * its probabilities, and the component's sampler (see WordSampler)
+     * draws the word from its own distribution given the context.
+     */
+    public int sampleWord(long state, DoubleSupplier random) {
+	double[] weights = Lambdas;
+	double sample = random.getAsDouble();
+	if (sample < weights[0])
+	    return Trigram.sampleWord(state, random);
+	if (sample < weights[0] + weights[1])
+	    return Bigram.sampleWord(Vocabulary.second(state), random);
+	return Unigram.sampleWord(0L, random);
+    }
+    
+    private double getWordProbability(int word1, int word2, int word) {
+	double[] weights = Lambdas;           // one set, even during train()
+	return weights[0] * Trigram.getWordProbability(word1, word2, word) +
+	    weights[1] * Bigram.getWordProbability(word2, word) +
+	    weights[2] * Unigram.getWordProbability(word);
     }
 
     public double getSentenceProbabilityTest(List<String> sentence) {
@@ -275,13 +271,17 @@ public class EMModel implements LanguageModel {
 		Trigram.checkModel())/ 3.0;
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, picking a
+     * component as sampleWord does.
      */
     public String generateWord(String prewordTwo, String prewordOne) {
-	return Trigram.generateWord(prewordTwo, prewordOne);
+	double[] weights = Lambdas;
+	double sample = ThreadLocalRandom.current().nextDouble();
+	if (sample < weights[0])
+	    return Trigram.generateWord(prewordTwo, prewordOne);
+	if (sample < weights[0] + weights[1])
+	    return Bigram.generateWord(prewordOne);
+	return Unigram.generateWord();
     }
     
     /**
@@ -5,6 +5,7 @@ import cs224n.util.Counter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
@@ -61,6 +62,7 @@ public class EmpiricalUnigramLanguageModel implements LanguageModel {
       }
     }
     total = wordCounter.totalCount();
+    wordCounter.setReadOnly();
   }
 
 
@@ -92,13 +94,25 @@ public class EmpiricalUnigramLanguageModel implements LanguageModel {
    * the sentence (including a final stop token).
    */
   public double getSentenceProbability(List<String> sentence) {
-    List<String> stoppedSentence = new ArrayList<String>(sentence);
-    stoppedSentence.add(STOP);
-    double probability = 1.0;
-    for (int index = 0; index < stoppedSentence.size(); index++) {
-      probability *= getWordProbability(stoppedSentence, index);
+    return Math.exp(getSentenceLogProbability(sentence));
+  }
+
+  /**
+   * Returns the log probability of the specified sentence: the sum of the
+   * log probabilities of each word in the sentence and of the stop token.
+   */
+  public double getSentenceLogProbability(List<String> sentence) {
+    double logProbability = 0.0;
+    for (String word : sentence) {
+      logProbability += Math.log(getWordProbability(word));
     }
-    return probability;
+    logProbability += Math.log(getWordProbability(STOP));
+    return logProbability;
+  }
+
+  public double getWordLogProbability(List<String> sentence, int index) {
+    String word = index < sentence.size() ? sentence.get(index) : STOP;
+    return Math.log(getWordProbability(word));
   }
 
   /**
@@ -129,7 +143,7 @@ public class EmpiricalUnigramLanguageModel implements LanguageModel {
    * mass until we reach our sample.
    */
   public String generateWord() {
-    double sample = Math.random();
+    double sample = ThreadLocalRandom.current().nextDouble();
     double sum = 0.0;
     for (String word : wordCounter.keySet()) {
       sum += wordCounter.getCount(word) / total;
@@ -0,0 +1,71 @@
+package cs224n.langmodel;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A language model which can score a sentence one word at a time, carrying
+ * its context from word to word as a state, so that a caller scoring a
+ * stream of words (or many sentences sharing prefixes) neither builds
+ * lists nor looks the history up again for every word.  <p/>
+ *
+ * A state is a long (for an n-gram model, the ids of the last n-1 words,
+ * packed); states are plain values, so they may be kept, copied and
+ * resumed freely.  Scoring a sentence goes:
+ *
+ * <pre>
+ *   long state = model.beginSentence();
+ *   for (String w : sentence) {
+ *     int word = model.getWordId(w);
+ *     logProbability += model.score(state, word);
+ *     state = model.nextState(state, word);
+ *   }
+ *   logProbability += model.score(state, Vocabulary.STOP_ID);
+ * </pre>
+ *
+ * which gives getSentenceLogProbability(sentence) (exactly, unless the
+ * model sums its log probabilities in another base, as ArpaModel does).
+ * Sampling goes the same way, with sampleWord in place of getWordId and
+ * score; since it draws from a random source the caller provides, a
+ * caller seeding its own source gets reproducible samples.
+ */
+public interface IncrementalLanguageModel extends LanguageModel {
+
+  /**
+   * Returns the id of the word in the model's vocabulary (UNKNOWN_ID if the
+   * model has not seen it).
+   */
+  public int getWordId(String word);
+
+  /**
+   * Returns the word with the given id.
+   */
+  public String getWord(int id);
+
+  /**
+   * Returns the state before the first word of a sentence.
+   */
+  public long beginSentence();
+
+  /**
+   * Returns the log probability of the word with the given id (which may
+   * be Vocabulary.STOP_ID) following the given state.
+   */
+  public double score(long state, int word);
+
+  /**
+   * Returns the state after the given state is followed by the word with
+   * the given id.
+   */
+  public long nextState(long state, int word);
+
+  /**
+   * Returns the id of a word sampled from the model's distribution over
+   * the words following the given state (Vocabulary.STOP_ID ending the
+   * sentence, or -1 for an unknown word), drawing samples uniform on
+   * [0, 1) from random.  A model whose scores do not sum to one over the
+   * following words (SimpleBackoffModel) has no such distribution; it
+   * samples from the nearest one it has, and says which.
+   */
+  public int sampleWord(long state, DoubleSupplier random);
+
+}
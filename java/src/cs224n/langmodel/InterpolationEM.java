@@ -0,0 +1,153 @@
+package cs224n.langmodel;
+
+import java.util.stream.IntStream;
+
+/**
+ * Estimates the weights of a linear interpolation of a trigram model and
+ * the bigram and unigram models it backs off to, by EM on held-out
+ * counts.  <p/>
+ *
+ * The weights change from one iteration to the next, but the component
+ * probabilities do not: each distinct held-out trigram is scored once by
+ * each component, when the estimator is built, and the three
+ * probabilities are kept in a flat array with the trigram's held-out
+ * count.  An iteration is then a pass over that array, which is split
+ * into fixed chunks summed in parallel, and the chunk sums are added in
+ * order, so the result does not depend on the number of threads.  <p/>
+ *
+ * Iterations go on until the held-out log likelihood per token improves
+ * by less than TOLERANCE (EM never makes it worse), or MAX_ITERATIONS
+ * have been run.
+ */
+class InterpolationEM {
+
+    /**
+     * The improvement in log likelihood per held-out token below which EM
+     * has converged.
+     */
+    static final double TOLERANCE = 1e-7;
+    static final int MAX_ITERATIONS = 1000;
+
+    private static final int ORDERS = 3;
+    private static final int CHUNK = 1 << 12;
+
+    private final double[] probabilities;   // trigram, bigram, unigram
+    private final double[] counts;
+    private final double tokens;
+    private int iterations;
+
+    /**
+     * Scores the held-out trigrams (a table counted with the model's
+     * vocabulary) with the model and the models it backs off to.
+     */
+    InterpolationEM(TrigramModel model, NgramTable heldOut) {
+	BigramModel bigram = model.getBigramModel();
+	UnigramModel unigram = bigram.uniModel;
+	int n = heldOut.size();
+	probabilities = new double[ORDERS * n];
+	counts = new double[n];
+	IntStream.range(0, heldOut.contextCount()).parallel().forEach(c -> {
+		long context = heldOut.getContext(c);
+		int word1 = Vocabulary.first(context);
+		int word2 = Vocabulary.second(context);
+		for (int i = heldOut.getStart(c); i < heldOut.getEnd(c); i++) {
+		    int word = heldOut.getWord(i);
+		    probabilities[ORDERS * i] = model.getWordProbability(word1, word2, word);
+		    probabilities[ORDERS * i + 1] = bigram.getWordProbability(word2, word);
+		    probabilities[ORDERS * i + 2] = unigram.getWordProbability(word);
+		    counts[i] = heldOut.getCount(i);
+		}
+	    });
+	double sum = 0.0;
+	for (double count : counts) {
+	    sum += count;
+	}
+	tokens = sum;
+    }
+
+    /**
+     * Runs EM from the given weights (trigram, bigram, unigram), and
+     * returns the weights it converges to.
+     */
+    double[] estimate(double[] initial) {
+	double[] weights = initial.clone();
+	double previous = Double.NEGATIVE_INFINITY;
+	for (iterations = 1; iterations <= MAX_ITERATIONS; iterations++) {
+	    double[] expected = new double[ORDERS];
+	    double logLikelihood = expect(weights, expected);
+	    double total = 0.0;
+	    for (double e : expected) {
+		total += e;
+	    }
+	    for (int k = 0; k < ORDERS; k++) {
+		weights[k] = expected[k] / total;
+	    }
+	    if ((logLikelihood - previous) / tokens < TOLERANCE)
+		break;
+	    previous = logLikelihood;
+	}
+	iterations = Math.min(iterations, MAX_ITERATIONS);
+	return weights;
+    }
+
+    /**
+     * The E step: returns the held-out log likelihood under the weights,
+     * and adds each component's expected count of held-out tokens to
+     * expected.
+     */
+    private double expect(double[] weights, double[] expected) {
+	int chunks = (counts.length + CHUNK - 1) / CHUNK;
+	double[] partials = new double[chunks * (ORDERS + 1)];
+	IntStream.range(0, chunks).parallel().forEach(k -> {
+		double log = 0.0, e0 = 0.0, e1 = 0.0, e2 = 0.0;
+		int end = Math.min(counts.length, (k + 1) * CHUNK);
+		for (int i = k * CHUNK; i < end; i++) {
+		    double p0 = weights[0] * probabilities[ORDERS * i];
+		    double p1 = weights[1] * probabilities[ORDERS * i + 1];
+		    double p2 = weights[2] * probabilities[ORDERS * i + 2];
+		    double p = p0 + p1 + p2;
+		    double share = counts[i] / p;
+		    log += counts[i] * Math.log(p);
+		    e0 += p0 * share;
+		    e1 += p1 * share;
+		    e2 += p2 * share;
+		}
+		int base = k * (ORDERS + 1);
+		partials[base] = log;
+		partials[base + 1] = e0;
+		partials[base + 2] = e1;
+		partials[base + 3] = e2;
+	    });
+	double sum = 0.0;
+	for (int k = 0; k < chunks; k++) {
+	    int base = k * (ORDERS + 1);
+	    sum += partials[base];
+	    for (int j = 0; j < ORDERS; j++) {
+		expected[j] += partials[base + 1 + j];
+	    }
+	}
+	return sum;
+    }
+
+    /**
+     * The held-out log likelihood under the given weights.
+     */
+    double getLogLikelihood(double[] weights) {
+	return expect(weights, new double[ORDERS]);
+    }
+
+    /**
+     * The number of iterations the last estimate ran.
+     */
+    int getIterations() {
+	return iterations;
+    }
+
+    /**
+     * The number of held-out tokens (the stop tokens included).
+     */
+    double getTokenCount() {
+	return tokens;
+    }
+
+}
@@ -6,14 +6,17 @@ import cs224n.langmodel.TrigramModel;
 
 import cs224n.util.Counter;
 import cs224n.util.CounterMap;
+import cs224n.util.HashSplit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 
 /**
  * A language model -- uses bigram counts
  */
-public class InterpolationModel implements LanguageModel {
+public class InterpolationModel implements IncrementalLanguageModel {
     
     private static final String START= "<S>";
     private static final String STOP = "</S>";
@@ -23,7 +26,8 @@ public class InterpolationModel implements LanguageModel {
     private BigramModel Bigram;
     private TrigramModel Trigram;
 
-    private double[] Weights = {0.4, 0.55, 0.05};
+    private volatile double[] Weights = {0.4, 0.55, 0.05};
+    private int threads = 1;
 
 
     // -----------------------------------------------------------------------
@@ -32,9 +36,21 @@ public class InterpolationModel implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public InterpolationModel() {
-	Unigram = new UnigramModel();
-	Bigram = new BigramModel();
 	Trigram = new TrigramModel();
+	Bigram = Trigram.getBigramModel();
+	Unigram = Bigram.uniModel;
+    }
+    
+    /**
+     * Rebuilds a trained model from its components and weights (see
+     * ModelFile).  The weights are in trigram, bigram, unigram order.
+     */
+    InterpolationModel(UnigramModel unigram, BigramModel bigram,
+		       TrigramModel trigram, double[] weights) {
+	Unigram = unigram;
+	Bigram = bigram;
+	Trigram = trigram;
+	Weights = weights;
     }
     
     /**
@@ -45,14 +61,21 @@ public class InterpolationModel implements LanguageModel {
      */
     public InterpolationModel(Collection<List<String>> sentences) {
 	this();
-	Unigram = new UnigramModel();
-	Bigram = new BigramModel();
-	Trigram = new TrigramModel();
 	train(sentences);
     }
 	    
     // -----------------------------------------------------------------------
     
+    /**
+     * Sets the number of threads used to count the training and held-out
+     * data (see LanguageModel.setTrainingThreads).
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+    }
+
     /**
      * Constructs a unigram language model from a collection of sentences.  A
      * special stop token is appended to each sentence, and then the
@@ -60,38 +83,45 @@ public class InterpolationModel implements LanguageModel {
      * collection of sentences are compiled.
      */
     public void train(Collection<List<String>> sentences) {
-	Unigram.train(sentences);
-	Bigram.train(sentences);
-	Trigram.train(sentences);
-	
-	double[] newW = {0.0, 0.0, 0.0};
-	double PMax = 0.0;
-	for(double i = 0.05; i < 0.95; i+=0.05){
-	    for(double j = 0.05; j < 0.95; j+=0.05){
-		double k = 1 - i - j;
-		if(k > 0){
-		    Weights[0] = i;
-		    Weights[1] = j;
-		    Weights[2] = k;
-		    double P = 0.0;
-		    for(List<String> sentence : sentences){
-			P+= getSentenceProbability(sentence);
-		    }
-		    if(P > PMax){
-			System.out.println("New: "+i+","+j+","+k+" = " + P);
-			newW[0] = i;
-			newW[1] = j;
-			newW[2] = k;
-			PMax = P;
-		    }
-		}
-	    }
-	}
-	System.out.println("New WIGHTS: "+newW[0]+","+newW[1]+","+newW[2]);
-	Weights = newW;
+	// count one sentence in five, chosen by a hash of its position (see
+	// HashSplit), as held-out data, and the rest for the components, each
+	// part in a pass of its own (with the threads set by
+	// setTrainingThreads); the held-out part is counted with a copy of
+	// the trained vocabulary, as update() requires
+	HashSplit<List<String>> split = new HashSplit<List<String>>(sentences, 5);
+	Trigram.train(new NgramCounts(new Vocabulary(), 3, split.getOtherFolds(0),
+				      threads));
+	NgramCounts heldOutCounts =
+	    new NgramCounts(Trigram.getVocabulary().copy(), 3, split.getFold(0),
+			    threads);
+
+	// the weights maximizing the held-out likelihood, by EM over the
+	// held-out trigrams, each scored once by each component
+	InterpolationEM em = new InterpolationEM(Trigram,
+						 heldOutCounts.getTrigramTable());
+	Weights = em.estimate(Weights);
+
+	// then the components learn the held-out counts too
+	Trigram.update(heldOutCounts);
     }
     
     
+    UnigramModel getUnigramModel() {
+	return Unigram;
+    }
+
+    BigramModel getBigramModel() {
+	return Bigram;
+    }
+
+    TrigramModel getTrigramModel() {
+	return Trigram;
+    }
+
+    double[] getWeights() {
+	return Weights.clone();
+    }
+    
     // -----------------------------------------------------------------------
     /**
      * Returns the probability, according to the model, of the word specified
@@ -100,10 +130,10 @@ public class InterpolationModel implements LanguageModel {
      * before.
      */
     public double getWordProbability(List<String> sentence, int index) {
-	
-	return (Weights[0] * Trigram.getWordProbability(sentence, index) +
-		Weights[1] * Bigram.getWordProbability(sentence, index) +
-		Weights[2] * Unigram.getWordProbability(sentence, index));
+	double[] weights = Weights;
+	return (weights[0] * Trigram.getWordProbability(sentence, index) +
+		weights[1] * Bigram.getWordProbability(sentence, index) +
+		weights[2] * Unigram.getWordProbability(sentence, index));
     }
     
     /**
@@ -112,15 +142,85 @@ public class InterpolationModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 2; index < stoppedSentence.size(); index++) {
-	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     * The components share one vocabulary, so each word is looked up once.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	double logProbability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = vocabulary.getId(w);
+	    logProbability += Math.log(getWordProbability(word1, word2, word));
+	    word1 = word2;
+	    word2 = word;
 	}
-	return probability;
+	logProbability += Math.log(getWordProbability(word1, word2, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	int word1 = index > 1 ? vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(getWordProbability(word1, word2, word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
+
+    public int getWordId(String word) {
+	return Trigram.getVocabulary().getId(word);
+    }
+
+    public String getWord(int id) {
+	return Trigram.getVocabulary().getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(Vocabulary.first(state),
+					   Vocabulary.second(state), word));
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    /**
+     * Samples the mixture: one draw picks a component, with the weights as
+     * its probabilities, and the component's sampler (see WordSampler)
+     * draws the word from its own distribution given the context.
+     */
+    public int sampleWord(long state, DoubleSupplier random) {
+	double[] weights = Weights;
+	double sample = random.getAsDouble();
+	if (sample < weights[0])
+	    return Trigram.sampleWord(state, random);
+	if (sample < weights[0] + weights[1])
+	    return Bigram.sampleWord(Vocabulary.second(state), random);
+	return Unigram.sampleWord(0L, random);
+    }
+    
+    private double getWordProbability(int word1, int word2, int word) {
+	double[] weights = Weights;           // one set, even during train()
+	return weights[0] * Trigram.getWordProbability(word1, word2, word) +
+	    weights[1] * Bigram.getWordProbability(word2, word) +
+	    weights[2] * Unigram.getWordProbability(word);
     }
     
     /**
@@ -132,40 +232,17 @@ public class InterpolationModel implements LanguageModel {
 		Weights[0] * Trigram.checkModel());
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, picking a
+     * component as sampleWord does.
      */
     public String generateWord(String prewordTwo, String prewordOne) {
-	//double sample = Math.random();
-	//if(sample < Weights[0]){
+	double[] weights = Weights;
+	double sample = ThreadLocalRandom.current().nextDouble();
+	if (sample < weights[0])
 	    return Trigram.generateWord(prewordTwo, prewordOne);
-	    /*} else if(sample < Weights[0] + Weights[1]){
+	if (sample < weights[0] + weights[1])
 	    return Bigram.generateWord(prewordOne);
-	} else {
-	    return Unigram.generateWord();
-	    }*/
-	
-
-
-
-	/*	double sum = 0.0;
-	String result = Trigram.generateWord(Weights[0], sample);
-	if(!reults.equals("*UNKNOWN*")) return result;
-	sample -= Weights[0];
-	result = Bigram.generateWord(Weights[1], sample);
-	if(!reults.equals("*UNKNOWN*")) return result;
-	return Unigram.generateWord(Weights[2], 
-	*/
-	/*for(String word : Trigram.wordCounter.keySet()) {
-	    sum += Weights[0] * Trigram.wordCounter.getCount(word) / Trigram.getTotal();
-	    if(sum > sample) {
-		return word;
-	    }
-	}
-	*/
-	
+	return Unigram.generateWord();
     }
     
     /**
@@ -5,6 +5,24 @@ import java.util.List;
 
 /**
  * Language models assign probabilities to sentences and generate sentences.
+ * <p/>
+ *
+ * The log variants score in the log domain (natural logarithm), so that
+ * long sentences do not underflow to zero.  They take the sentence without
+ * any start or stop tokens; for getWordLogProbability, index
+ * sentence.size() stands for the stop token which ends the sentence.  <p/>
+ *
+ * Once train() has returned, and the model has been handed to other
+ * threads by any of the usual safe means (starting them, an executor, a
+ * concurrent collection), scoring, checking and generating are
+ * thread-safe: the models in this package keep what training computed in
+ * structures nothing changes afterwards, give any caches they build while
+ * sampling their own locking, and draw random numbers from
+ * ThreadLocalRandom (or the caller's source).  A score does not depend on
+ * which thread computes it, or on what other threads are doing.  Training
+ * (or updating) a model while it is being read is only supported where a
+ * model says so (see UnigramModel.update).  LanguageModelTester -stress
+ * checks all this for a given model.
  *
  * @author Dan Klein
  */
@@ -12,12 +30,64 @@ public interface LanguageModel {
 
   public void train(Collection<List<String>> trainingSentences);
 
+  /**
+   * Sets the number of threads train() (and update(), where a model has
+   * one) may use to count the corpus; the default is one.  A model which
+   * always trains on one thread ignores it.
+   */
+  public default void setTrainingThreads(int threads) {
+  }
+
   public double getSentenceProbability(List<String> sentence);
 
   public double getWordProbability(List<String> sentence, int index);
 
+  /**
+   * Returns the log probability of the sentence, stop token included; the
+   * sum of getWordLogProbability over indices 0 to sentence.size().
+   */
+  public double getSentenceLogProbability(List<String> sentence);
+
+  /**
+   * Returns the log probability of the word at the given index of the
+   * (unpadded) sentence given the words before it, or of the stop token if
+   * index is sentence.size().
+   */
+  public double getWordLogProbability(List<String> sentence, int index);
+
+  /**
+   * Returns getSentenceLogProbability of each sentence of the batch, in
+   * order.  By default the batch is spread over the common ForkJoinPool;
+   * models may override this with a faster path.  The list should support
+   * fast random access.
+   */
+  public default double[] scoreBatch(List<List<String>> sentences) {
+    return BatchScorer.score(this, sentences);
+  }
+
   public double checkModel();
 
   public List<String> generateSentence();
 
+  /**
+   * Generates n sentences, spread over the common ForkJoinPool.  For an
+   * IncrementalLanguageModel the sentences are drawn from SplittableRandom
+   * streams split off one seeded with the given seed, so the same seed
+   * gives the same sentences however many threads run; sentences reaching
+   * SentenceGenerator.MAX_LENGTH words are cut off there.  Other models
+   * fall back on generateSentence().
+   */
+  public default List<List<String>> generateSentences(int n, long seed) {
+    return generateSentences(n, seed, SentenceGenerator.MAX_LENGTH);
+  }
+
+  /**
+   * As generateSentences(n, seed), cutting sentences off at maxLength
+   * words.
+   */
+  public default List<List<String>> generateSentences(int n, long seed,
+                                                      int maxLength) {
+    return SentenceGenerator.generate(this, n, seed, maxLength);
+  }
+
 }
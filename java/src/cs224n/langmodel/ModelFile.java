@@ -0,0 +1,443 @@
+package cs224n.langmodel;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes trained models in a versioned binary format which is
+ * memory-mapped on load, so that a scoring process can start without
+ * retraining and without deserializing the n-gram tables: the tables and
+ * backoff weights of a loaded model are buffer views straight into the
+ * mapped file, and several JVMs scoring from the same file share its pages
+ * through the OS page cache.  Only the vocabulary (a word-to-id hash map)
+ * and the unigram counts are copied onto the heap.  <p/>
+ *
+ * Supported models are UnigramModel, BigramModel, TrigramModel,
+ * InterpolationModel and EMModel.  <p/>
+ *
+ * Layout (big-endian, every section 8-byte aligned):
+ * <pre>
+ *   long magic, int version, int sectionCount
+ *   sectionCount times:  int kind, int 0, long payloadLength, payload
+ * </pre>
+ * A model is written as a list of sections, its parts first; a section
+ * refers to earlier ones by their position in the list, and parts shared
+ * by several models (the same Vocabulary or component model object) are
+ * written once.  The last section is the model itself.  <p/>
+ *
+ * Each section is mapped as one buffer, and a Java buffer holds at most
+ * Integer.MAX_VALUE bytes, so no section may be larger than 2 GB; write()
+ * refuses to write a model with a larger part.  (The file as a whole may
+ * be larger.)
+ */
+public class ModelFile {
+
+    private static final long MAGIC = 0x43533232344e4c4dL;   // "CS224NLM"
+    private static final int VERSION = 1;
+
+    private static final int VOCABULARY = 1;
+    private static final int UNIGRAM = 2;
+    private static final int BIGRAM = 3;
+    private static final int TRIGRAM = 4;
+    private static final int INTERPOLATION = 5;
+    private static final int EM = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Writes a trained model to the given file.
+     *
+     * @throws IllegalArgumentException if the model type is not supported
+     * @throws IOException if a part of the model is larger than a section
+     * may be (see above)
+     */
+    public static void write(LanguageModel model, String filename)
+	throws IOException {
+	Writer writer = new Writer();
+	writer.add(model);
+	writer.writeTo(filename);
+    }
+
+    /**
+     * Maps the given model file and returns the model in it, ready to score.
+     *
+     * @throws IOException if the file is not a model file of this version,
+     * or is truncated or corrupt
+     */
+    public static LanguageModel load(String filename) throws IOException {
+	RandomAccessFile file = new RandomAccessFile(filename, "r");
+	try {
+	    FileChannel channel = file.getChannel();
+	    ByteBuffer header = ByteBuffer.allocate(16);
+	    readFully(channel, header, 0);
+	    if (header.getLong(0) != MAGIC)
+		throw new IOException(filename + " is not a model file");
+	    if (header.getInt(8) != VERSION)
+		throw new IOException(filename + " has format version " +
+				      header.getInt(8) + ", expected " + VERSION);
+	    int sectionCount = header.getInt(12);
+	    if (sectionCount < 1)
+		throw new IOException(filename + " has no sections");
+
+	    List<Object> sections = new ArrayList<Object>();
+	    long position = 16;
+	    for (int i = 0; i < sectionCount; i++) {
+		header.clear();
+		readFully(channel, header, position);
+		int kind = header.getInt(0);
+		long length = header.getLong(8);
+		if (length < 0 || length > Integer.MAX_VALUE)
+		    throw new IOException(filename + ": section " + i +
+					  " has bad length " + length);
+		if (position + 16 + length > channel.size())
+		    throw new IOException(filename + " is truncated: section " + i +
+					  " ends at byte " + (position + 16 + length) +
+					  ", file has " + channel.size());
+		MappedByteBuffer payload =
+		    channel.map(FileChannel.MapMode.READ_ONLY, position + 16, length);
+		try {
+		    sections.add(readSection(kind, payload, sections));
+		} catch (IOException e) {
+		    throw new IOException(filename + ": section " + i + ": " +
+					  e.getMessage(), e);
+		} catch (BufferUnderflowException | IllegalArgumentException |
+			 IndexOutOfBoundsException | ClassCastException e) {
+		    // a count or reference which does not fit the section
+		    throw new IOException(filename + ": corrupt section " + i, e);
+		}
+		position += 16 + length;
+	    }
+	    // the mappings stay valid after the channel is closed
+	    return (LanguageModel)sections.get(sections.size() - 1);
+	} finally {
+	    file.close();
+	}
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+				  long position) throws IOException {
+	while (buffer.hasRemaining()) {
+	    if (channel.read(buffer, position + buffer.position()) < 0)
+		throw new IOException("Unexpected end of model file");
+	}
+    }
+
+    // -----------------------------------------------------------------------
+
+    private static Object readSection(int kind, ByteBuffer in, List<Object> sections)
+	throws IOException {
+	switch (kind) {
+	case VOCABULARY: {
+	    Vocabulary vocabulary = new Vocabulary();
+	    int size = count(in, 4);
+	    for (int id = 0; id < size; id++) {
+		byte[] bytes = new byte[count(in, 1)];
+		in.get(bytes);
+		if (vocabulary.addWord(new String(bytes, UTF8)) != id)
+		    throw new IOException("Corrupt vocabulary at id " + id);
+	    }
+	    return vocabulary;
+	}
+	case UNIGRAM: {
+	    Vocabulary vocabulary = (Vocabulary)sections.get(in.getInt());
+	    double[] counts = new double[count(in, 8)];
+	    in.asDoubleBuffer().get(counts);
+	    return new UnigramModel(vocabulary, counts);
+	}
+	case BIGRAM: {
+	    Vocabulary vocabulary = (Vocabulary)sections.get(in.getInt());
+	    UnigramModel uniModel = (UnigramModel)sections.get(in.getInt());
+	    NgramTable table = readTable(in);
+	    return new BigramModel(vocabulary, uniModel, table,
+				   doubles(in, table.contextCount()));
+	}
+	case TRIGRAM: {
+	    Vocabulary vocabulary = (Vocabulary)sections.get(in.getInt());
+	    BigramModel biModel = (BigramModel)sections.get(in.getInt());
+	    NgramTable table = readTable(in);
+	    return new TrigramModel(vocabulary, biModel, table,
+				    doubles(in, table.contextCount()));
+	}
+	case INTERPOLATION:
+	case EM: {
+	    UnigramModel unigram = (UnigramModel)sections.get(in.getInt());
+	    BigramModel bigram = (BigramModel)sections.get(in.getInt());
+	    TrigramModel trigram = (TrigramModel)sections.get(in.getInt());
+	    double[] weights = new double[count(in, 8)];
+	    in.asDoubleBuffer().get(weights);
+	    if (kind == EM)
+		return new EMModel(unigram, bigram, trigram, weights);
+	    return new InterpolationModel(unigram, bigram, trigram, weights);
+	}
+	default:
+	    throw new IOException("Unknown section kind " + kind);
+	}
+    }
+
+    /**
+     * Reads the number of values which follow, each of the given size,
+     * checking that they fit in the rest of the section.
+     */
+    private static int count(ByteBuffer in, int bytesEach) throws IOException {
+	int n = in.getInt();
+	if (n < 0 || (long)n * bytesEach > in.remaining())
+	    throw new IOException("Corrupt count " + n);
+	return n;
+    }
+
+    private static NgramTable readTable(ByteBuffer in) {
+	int contextCount = in.getInt();
+	int size = in.getInt();
+	LongBuffer contexts = longs(in, contextCount);
+	DoubleBuffer totals = doubles(in, contextCount);
+	IntBuffer offsets = ints(in, contextCount + 1);
+	IntBuffer words = ints(in, size);
+	IntBuffer counts = ints(in, size);
+	return new NgramTable(contexts, offsets, totals, words, counts);
+    }
+
+    // Each of these returns a view of the next n values and skips past them
+    // (and past the padding to the next 8-byte boundary).
+
+    private static LongBuffer longs(ByteBuffer in, int n) {
+	LongBuffer view = in.slice().asLongBuffer();
+	view.limit(n);
+	skip(in, 8L * n);
+	return view.slice();
+    }
+
+    private static DoubleBuffer doubles(ByteBuffer in, int n) {
+	DoubleBuffer view = in.slice().asDoubleBuffer();
+	view.limit(n);
+	skip(in, 8L * n);
+	return view.slice();
+    }
+
+    private static IntBuffer ints(ByteBuffer in, int n) {
+	IntBuffer view = in.slice().asIntBuffer();
+	view.limit(n);
+	skip(in, 4L * n);
+	return view.slice();
+    }
+
+    private static void skip(ByteBuffer in, long bytes) {
+	// a section is at most Integer.MAX_VALUE bytes long, so the new
+	// position fits an int whenever it is within the buffer
+	if (padded(bytes) > in.remaining())
+	    throw new BufferUnderflowException();
+	in.position(in.position() + (int)padded(bytes));
+    }
+
+    private static long padded(long bytes) {
+	return (bytes + 7) & ~7L;
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Collects the sections of a model, parts first, and writes them out.
+     */
+    private static class Writer {
+
+	private List<Object> sections = new ArrayList<Object>();
+	private Map<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	private FileChannel channel;
+
+	int add(Object part) {
+	    Integer id = ids.get(part);
+	    if (id != null)
+		return id;
+	    if (part instanceof UnigramModel) {
+		add(((UnigramModel)part).getVocabulary());
+	    } else if (part instanceof BigramModel) {
+		add(((BigramModel)part).getVocabulary());
+		add(((BigramModel)part).uniModel);
+	    } else if (part instanceof TrigramModel) {
+		add(((TrigramModel)part).getVocabulary());
+		add(((TrigramModel)part).getBigramModel());
+	    } else if (part instanceof InterpolationModel) {
+		InterpolationModel model = (InterpolationModel)part;
+		add(model.getUnigramModel());
+		add(model.getBigramModel());
+		add(model.getTrigramModel());
+	    } else if (part instanceof EMModel) {
+		EMModel model = (EMModel)part;
+		add(model.getUnigramModel());
+		add(model.getBigramModel());
+		add(model.getTrigramModel());
+	    } else if (!(part instanceof Vocabulary)) {
+		throw new IllegalArgumentException("Cannot write a " +
+						   part.getClass().getName());
+	    }
+	    ids.put(part, sections.size());
+	    sections.add(part);
+	    return sections.size() - 1;
+	}
+
+	void writeTo(String filename) throws IOException {
+	    RandomAccessFile out = new RandomAccessFile(filename, "rw");
+	    try {
+		out.setLength(0);
+		channel = out.getChannel();
+		buffer.putLong(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(sections.size());
+		for (Object part : sections) {
+		    writeSection(part);
+		}
+		flush();
+	    } finally {
+		out.close();
+	    }
+	}
+
+	private void writeSection(Object part) throws IOException {
+	    flush();
+	    long start = channel.position();
+	    // header; the payload length is filled in once it is known
+	    buffer.putInt(kindOf(part));
+	    buffer.putInt(0);
+	    buffer.putLong(0);
+	    if (part instanceof Vocabulary) {
+		Vocabulary vocabulary = (Vocabulary)part;
+		putInt(vocabulary.size());
+		for (int id = 0; id < vocabulary.size(); id++) {
+		    byte[] bytes = vocabulary.getWord(id).getBytes(UTF8);
+		    putInt(bytes.length);
+		    for (byte b : bytes) {
+			ensure(1);
+			buffer.put(b);
+		    }
+		}
+	    } else if (part instanceof UnigramModel) {
+		UnigramModel model = (UnigramModel)part;
+		double[] counts = model.getCounts();
+		putInt(ids.get(model.getVocabulary()));
+		putInt(counts.length);
+		putDoubles(DoubleBuffer.wrap(counts));
+	    } else if (part instanceof BigramModel) {
+		BigramModel model = (BigramModel)part;
+		putInt(ids.get(model.getVocabulary()));
+		putInt(ids.get(model.uniModel));
+		putTable(model.getTable());
+		putDoubles(model.getAlphas());
+	    } else if (part instanceof TrigramModel) {
+		TrigramModel model = (TrigramModel)part;
+		putInt(ids.get(model.getVocabulary()));
+		putInt(ids.get(model.getBigramModel()));
+		putTable(model.getTable());
+		putDoubles(model.getAlphas());
+	    } else if (part instanceof InterpolationModel) {
+		InterpolationModel model = (InterpolationModel)part;
+		putComponents(model.getUnigramModel(), model.getBigramModel(),
+			      model.getTrigramModel(), model.getWeights());
+	    } else {
+		EMModel model = (EMModel)part;
+		putComponents(model.getUnigramModel(), model.getBigramModel(),
+			      model.getTrigramModel(), model.getWeights());
+	    }
+	    pad();
+	    flush();
+	    long end = channel.position();
+	    if (end - start - 16 > Integer.MAX_VALUE)
+		throw new IOException("A " + part.getClass().getSimpleName() +
+				      " section of " + (end - start - 16) +
+				      " bytes is over the 2 GB a section may hold");
+	    ByteBuffer length = ByteBuffer.allocate(8);
+	    length.putLong(0, end - start - 16);
+	    channel.write(length, start + 8);
+	}
+
+	private int kindOf(Object part) {
+	    if (part instanceof Vocabulary) return VOCABULARY;
+	    if (part instanceof UnigramModel) return UNIGRAM;
+	    if (part instanceof BigramModel) return BIGRAM;
+	    if (part instanceof TrigramModel) return TRIGRAM;
+	    if (part instanceof InterpolationModel) return INTERPOLATION;
+	    return EM;
+	}
+
+	private void putComponents(UnigramModel unigram, BigramModel bigram,
+				   TrigramModel trigram, double[] weights)
+	    throws IOException {
+	    putInt(ids.get(unigram));
+	    putInt(ids.get(bigram));
+	    putInt(ids.get(trigram));
+	    putInt(weights.length);
+	    putDoubles(DoubleBuffer.wrap(weights));
+	}
+
+	private void putTable(NgramTable table) throws IOException {
+	    putInt(table.contextCount());
+	    putInt(table.size());
+	    LongBuffer contexts = table.contextBuffer();
+	    while (contexts.hasRemaining()) {
+		ensure(8);
+		buffer.putLong(contexts.get());
+	    }
+	    putDoubles(table.totalBuffer());
+	    putInts(table.offsetBuffer());
+	    putInts(table.wordBuffer());
+	    putInts(table.countBuffer());
+	}
+
+	private void putDoubles(DoubleBuffer values) throws IOException {
+	    values.rewind();
+	    while (values.hasRemaining()) {
+		ensure(8);
+		buffer.putDouble(values.get());
+	    }
+	    pad();
+	}
+
+	private void putInts(IntBuffer values) throws IOException {
+	    values.rewind();
+	    while (values.hasRemaining()) {
+		putInt(values.get());
+	    }
+	    pad();
+	}
+
+	private void putInt(int value) throws IOException {
+	    ensure(4);
+	    buffer.putInt(value);
+	}
+
+	private void pad() throws IOException {
+	    while ((channel.position() + buffer.position()) % 8 != 0) {
+		ensure(1);
+		buffer.put((byte)0);
+	    }
+	}
+
+	private void ensure(int bytes) throws IOException {
+	    if (buffer.remaining() < bytes)
+		flush();
+	}
+
+	private void flush() throws IOException {
+	    buffer.flip();
+	    while (buffer.hasRemaining()) {
+		channel.write(buffer);
+	    }
+	    buffer.clear();
+	}
+    }
+
+}
@@ -0,0 +1,117 @@
+package cs224n.langmodel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Scores an N-best list of candidate sentences, scoring each prefix shared
+ * by several candidates only once.  <p/>
+ *
+ * The candidates are visited in lexicographic order, which is a depth-first
+ * walk of the prefix trie over them: each candidate shares its longest
+ * common prefix with the one before it, so only the words after that
+ * prefix, and the stop token, are scored.  The log probability of every
+ * prefix on the current path is kept, along with the model's context state
+ * after it if the model is an IncrementalLanguageModel, so that walking
+ * back up the trie costs nothing.  Duplicate candidates share a single leaf
+ * and are scored once.  <p/>
+ *
+ * The word log probabilities are summed left to right, as
+ * getSentenceLogProbability() sums them, so the scores match the model's
+ * own (up to rounding for a model which, like ArpaModel, sums in another
+ * base).
+ */
+public class NBestScorer {
+
+    private NBestScorer() {
+    }
+
+    /**
+     * Orders sentences lexicographically, word by word; a sentence comes
+     * before any longer sentence it is a prefix of.
+     */
+    private static final Comparator<List<String>> LEXICOGRAPHIC =
+	new Comparator<List<String>>() {
+	    public int compare(List<String> a, List<String> b) {
+		int length = Math.min(a.size(), b.size());
+		for (int i = 0; i < length; i++) {
+		    int c = a.get(i).compareTo(b.get(i));
+		    if (c != 0)
+			return c;
+		}
+		return a.size() - b.size();
+	    }
+	};
+
+    /**
+     * Returns the log probability of each candidate, in the order given.
+     */
+    public static double[] score(LanguageModel model,
+				 final List<List<String>> candidates) {
+	int n = candidates.size();
+	Integer[] order = new Integer[n];
+	int maxLength = 0;
+	for (int i = 0; i < n; i++) {
+	    order[i] = i;
+	    maxLength = Math.max(maxLength, candidates.get(i).size());
+	}
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    return LEXICOGRAPHIC.compare(candidates.get(a), candidates.get(b));
+		}
+	    });
+
+	// prefixLogs[d] is the log probability of the first d words of the
+	// current candidate and, for an incremental model, states[d] the
+	// model's state after them
+	double[] prefixLogs = new double[maxLength + 1];
+	IncrementalLanguageModel incremental = null;
+	long[] states = null;
+	if (model instanceof IncrementalLanguageModel) {
+	    incremental = (IncrementalLanguageModel)model;
+	    states = new long[maxLength + 1];
+	    states[0] = incremental.beginSentence();
+	}
+	double[] scores = new double[n];
+	List<String> previous = null;
+	for (int k = 0; k < n; k++) {
+	    int c = order[k];
+	    List<String> candidate = candidates.get(c);
+	    int shared = previous == null ? 0 : commonPrefix(previous, candidate);
+	    if (previous != null && shared == candidate.size()
+		&& shared == previous.size()) {
+		scores[c] = scores[order[k-1]];
+		continue;
+	    }
+	    if (incremental != null) {
+		for (int d = shared; d < candidate.size(); d++) {
+		    int word = incremental.getWordId(candidate.get(d));
+		    prefixLogs[d+1] = prefixLogs[d] + incremental.score(states[d], word);
+		    states[d+1] = incremental.nextState(states[d], word);
+		}
+		scores[c] = prefixLogs[candidate.size()] +
+		    incremental.score(states[candidate.size()], Vocabulary.STOP_ID);
+	    } else {
+		for (int d = shared; d < candidate.size(); d++) {
+		    prefixLogs[d+1] = prefixLogs[d] +
+			model.getWordLogProbability(candidate, d);
+		}
+		scores[c] = prefixLogs[candidate.size()] +
+		    model.getWordLogProbability(candidate, candidate.size());
+	    }
+	    previous = candidate;
+	}
+	return scores;
+    }
+
+    private static int commonPrefix(List<String> a, List<String> b) {
+	int length = Math.min(a.size(), b.size());
+	int i = 0;
+	while (i < length && a.get(i).equals(b.get(i))) {
+	    i++;
+	}
+	return i;
+    }
+
+}
@@ -0,0 +1,498 @@
+package cs224n.langmodel;
+
+import cs224n.util.LongCounter;
+import cs224n.util.LongIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Unigram, bigram and trigram counts gathered in a single pass over a
+ * corpus.  Each sentence is turned into ids once and every order is counted
+ * in the same loop, so a model which needs all three orders (a TrigramModel
+ * and the BigramModel and UnigramModel it backs off to, or the components
+ * of an interpolated model) reads the corpus once instead of once per
+ * order and per component.  <p/>
+ *
+ * Bigram and trigram counts are split into shards by a hash of their
+ * context, one shard per counting thread, and no context is in two shards,
+ * so the shards never need merging.  When a corpus is counted with several
+ * threads, the calling thread only takes the sentences off the
+ * collection's iterator, in batches; each batch is cut into one slice per
+ * thread, and goes through three steps:
+ * <ol>
+ * <li>Each thread turns the words of its slice into ids, noting any word
+ *     not yet in the vocabulary.  The calling thread then gives the new
+ *     words ids, in corpus order, so that ids come out exactly as with one
+ *     thread.
+ * <li>Each thread counts the unigrams of its slice into an array of its
+ *     own, and hashes each bigram and trigram context once, appending the
+ *     n-gram to a buffer for the shard the context falls in.
+ * <li>Each shard's thread counts the buffers for its shard, slice by
+ *     slice, so that its n-grams are counted in corpus order.
+ * </ol>
+ * Each n-gram is thus hashed once and counted once, whatever the number of
+ * threads.  Steps 2 and 3 of a batch run while the calling thread reads
+ * the next batch and the threads encode it.  The counts are identical to
+ * a single-threaded count.  <p/>
+ *
+ * The first call to getBigramTable() or getTrigramTable() freezes the
+ * counts: the shards are turned into NgramTables and dropped, and the same
+ * frozen tables are handed to every model trained from these counts.  No
+ * sentences may be added after that.  <p/>
+ *
+ * Only the constructor which takes a collection counts in parallel;
+ * sentences added one at a time are counted on the calling thread.  A
+ * model splitting its data (into training and held-out parts, say) should
+ * count each part from a collection view, such as those of HashSplit.
+ */
+public class NgramCounts {
+
+    private static final int SLICE_SIZE = 1024;        // sentences per thread
+
+    private Vocabulary vocabulary;
+    private int order;
+    private int threads;
+    private int shards;
+
+    private double[] unigrams;
+    private LongIndex[] bigramContexts;
+    private LongCounter[] bigrams;
+    private LongIndex[] trigramContexts;
+    private LongCounter[] trigrams;
+
+    private boolean frozen;
+    private NgramTable bigramTable;
+    private NgramTable trigramTable;
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Constructs empty counts up to the given order (1 to 3), over the
+     * given vocabulary.
+     */
+    public NgramCounts(Vocabulary vocabulary, int order) {
+	this(vocabulary, order, 1);
+    }
+
+    private NgramCounts(Vocabulary vocabulary, int order, int threads) {
+	if (order < 1 || order > 3)
+	    throw new IllegalArgumentException("cannot count " + order + "-grams");
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.vocabulary = vocabulary;
+	this.order = order;
+	this.threads = threads;
+	shards = order == 1 ? 1 : threads;
+	unigrams = new double[vocabulary.size()];
+	if (order >= 2) {
+	    bigramContexts = new LongIndex[shards];
+	    bigrams = new LongCounter[shards];
+	}
+	if (order >= 3) {
+	    trigramContexts = new LongIndex[shards];
+	    trigrams = new LongCounter[shards];
+	}
+	for (int shard = 0; shard < shards; shard++) {
+	    if (order >= 2) {
+		bigramContexts[shard] = new LongIndex();
+		bigrams[shard] = new LongCounter();
+	    }
+	    if (order >= 3) {
+		trigramContexts[shard] = new LongIndex();
+		trigrams[shard] = new LongCounter();
+	    }
+	}
+    }
+
+    /**
+     * Counts a collection of sentences, reading it once, on the calling
+     * thread.
+     */
+    public NgramCounts(Vocabulary vocabulary, int order,
+		       Collection<List<String>> sentences) {
+	this(vocabulary, order, sentences, 1);
+    }
+
+    /**
+     * Counts a collection of sentences, reading it once, with the given
+     * number of threads.
+     */
+    public NgramCounts(Vocabulary vocabulary, int order,
+		       Collection<List<String>> sentences, int threads) {
+	this(vocabulary, order, threads);
+	if (threads == 1) {
+	    for (List<String> sentence : sentences) {
+		addSentence(sentence);
+	    }
+	} else {
+	    new ParallelCount().run(sentences);
+	}
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Counts one sentence, adding any new words to the vocabulary.  The
+     * sentence is padded with start tokens and a stop token.
+     */
+    public void addSentence(List<String> sentence) {
+	addEncoded(vocabulary.addSentence(sentence));
+    }
+
+    /**
+     * Counts one sentence already turned into ids by this vocabulary, on
+     * the calling thread, in a single walk over the sentence.
+     */
+    public void addEncoded(int[] sentence) {
+	if (frozen)
+	    throw new IllegalStateException("counts are frozen");
+	unigrams = countUnigrams(sentence, unigrams, vocabulary.size());
+	if (order < 2)
+	    return;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (int i = 0; i <= sentence.length; i++) {
+	    int word = i < sentence.length ? sentence[i] : Vocabulary.STOP_ID;
+	    int shard = shardOf(word2);
+	    int context = bigramContexts[shard].add(word2);
+	    bigrams[shard].incrementCount(Vocabulary.pack(context, word), 1.0);
+	    if (order >= 3) {
+		long key = Vocabulary.pack(word1, word2);
+		shard = shardOf(key);
+		context = trigramContexts[shard].add(key);
+		trigrams[shard].incrementCount(Vocabulary.pack(context, word), 1.0);
+	    }
+	    word1 = word2;
+	    word2 = word;
+	}
+    }
+
+    /**
+     * Adds the sentence's words and its stop token to the counts, growing
+     * the array to at least the given vocabulary size if need be, and
+     * returns the array.
+     */
+    private static double[] countUnigrams(int[] sentence, double[] counts,
+					  int vocabularySize) {
+	if (counts.length < vocabularySize) {
+	    counts = Arrays.copyOf(counts, Math.max(vocabularySize,
+						    2 * counts.length));
+	}
+	for (int word : sentence) {
+	    counts[word] += 1.0;
+	}
+	counts[Vocabulary.STOP_ID] += 1.0;
+	return counts;
+    }
+
+    private int shardOf(long contextKey) {
+	if (shards == 1)
+	    return 0;
+	long h = contextKey * 0x9E3779B97F4A7C15L;
+	return (int)((h >>> 33) % shards);
+    }
+
+    /**
+     * N-grams routed to one shard by one slice: context keys and the words
+     * which follow them, in corpus order.
+     */
+    private static class NgramBuffer {
+	long[] contexts = new long[1024];
+	int[] words = new int[1024];
+	int size;
+
+	void add(long context, int word) {
+	    if (size == contexts.length) {
+		contexts = Arrays.copyOf(contexts, 2 * size);
+		words = Arrays.copyOf(words, 2 * size);
+	    }
+	    contexts[size] = context;
+	    words[size] = word;
+	    size++;
+	}
+
+	/**
+	 * Counts the buffered n-grams into a shard, and empties the buffer.
+	 */
+	void drainInto(LongIndex shardContexts, LongCounter shard) {
+	    for (int i = 0; i < size; i++) {
+		int context = shardContexts.add(contexts[i]);
+		shard.incrementCount(Vocabulary.pack(context, words[i]), 1.0);
+	    }
+	    size = 0;
+	}
+    }
+
+    /**
+     * Counts a collection with a pool of threads, in the steps described
+     * above.  Slice i of every batch is routed into the same unigram array
+     * and shard buffers, and a batch's steps 2 and 3 finish before those of
+     * the next batch start, so no two threads touch the same structure at
+     * once; the futures order their accesses.
+     */
+    private class ParallelCount {
+	ExecutorService workers = Executors.newFixedThreadPool(threads);
+	double[][] sliceUnigrams = new double[threads][];
+	NgramBuffer[][] bigramBuffers = new NgramBuffer[threads][shards];
+	NgramBuffer[][] trigramBuffers = new NgramBuffer[threads][shards];
+
+	ParallelCount() {
+	    for (int slice = 0; slice < threads; slice++) {
+		sliceUnigrams[slice] = new double[vocabulary.size()];
+		for (int shard = 0; shard < shards; shard++) {
+		    bigramBuffers[slice][shard] = new NgramBuffer();
+		    trigramBuffers[slice][shard] = new NgramBuffer();
+		}
+	    }
+	}
+
+	void run(Collection<List<String>> sentences) {
+	    try {
+		Iterator<List<String>> source = sentences.iterator();
+		List<List<String>> batch = nextBatch(source);
+		CompletableFuture<Void> counting = CompletableFuture.completedFuture(null);
+		while (!batch.isEmpty()) {
+		    int[][] encoded = new int[batch.size()][];
+		    long[][] missing = new long[threads][];
+		    CompletableFuture<Void> encoding = encode(batch, encoded, missing);
+		    List<List<String>> next = nextBatch(source);
+		    join(encoding);
+		    addNewWords(batch, encoded, missing);
+		    join(counting);         // its buffers are free again
+		    counting = count(encoded, vocabulary.size());
+		    batch = next;
+		}
+		join(counting);
+	    } finally {
+		workers.shutdownNow();
+	    }
+	    unigrams = Arrays.copyOf(unigrams, vocabulary.size());
+	    for (double[] counts : sliceUnigrams) {
+		int size = Math.min(counts.length, unigrams.length);
+		for (int word = 0; word < size; word++) {
+		    unigrams[word] += counts[word];
+		}
+	    }
+	}
+
+	List<List<String>> nextBatch(Iterator<List<String>> source) {
+	    List<List<String>> batch = new ArrayList<List<String>>(SLICE_SIZE * threads);
+	    while (batch.size() < SLICE_SIZE * threads && source.hasNext()) {
+		batch.add(source.next());
+	    }
+	    return batch;
+	}
+
+	int sliceStart(int slice, int batchSize) {
+	    return (int)((long)batchSize * slice / threads);
+	}
+
+	/**
+	 * Step 1, on the pool: encodes the words already in the vocabulary,
+	 * and lists, per slice, where the others are (sentence and position,
+	 * packed into a long).
+	 */
+	CompletableFuture<Void> encode(final List<List<String>> batch,
+				       final int[][] encoded, final long[][] missing) {
+	    CompletableFuture<?>[] tasks = new CompletableFuture<?>[threads];
+	    for (int slice = 0; slice < threads; slice++) {
+		final int s = slice;
+		tasks[slice] = CompletableFuture.runAsync(new Runnable() {
+			public void run() {
+			    missing[s] = encodeSlice(batch, encoded,
+						     sliceStart(s, batch.size()),
+						     sliceStart(s + 1, batch.size()));
+			}
+		    }, workers);
+	    }
+	    return CompletableFuture.allOf(tasks);
+	}
+
+	long[] encodeSlice(List<List<String>> batch, int[][] encoded,
+			   int start, int end) {
+	    long[] missing = new long[16];
+	    int count = 0;
+	    for (int i = start; i < end; i++) {
+		List<String> sentence = batch.get(i);
+		int[] ids = new int[sentence.size()];
+		for (int j = 0; j < ids.length; j++) {
+		    ids[j] = vocabulary.findId(sentence.get(j));
+		    if (ids[j] < 0) {
+			if (count == missing.length)
+			    missing = Arrays.copyOf(missing, 2 * count);
+			missing[count++] = Vocabulary.pack(i, j);
+		    }
+		}
+		encoded[i] = ids;
+	    }
+	    return Arrays.copyOf(missing, count);
+	}
+
+	/**
+	 * The rest of step 1, on the calling thread: gives the words not yet
+	 * in the vocabulary their ids.  The slices are in corpus order, and
+	 * so are the positions within each.
+	 */
+	void addNewWords(List<List<String>> batch, int[][] encoded, long[][] missing) {
+	    for (long[] positions : missing) {
+		for (long position : positions) {
+		    int i = Vocabulary.first(position);
+		    int j = Vocabulary.second(position);
+		    encoded[i][j] = vocabulary.addWord(batch.get(i).get(j));
+		}
+	    }
+	}
+
+	/**
+	 * Steps 2 and 3, started on the pool; the returned future completes
+	 * once the batch is counted.
+	 */
+	CompletableFuture<Void> count(final int[][] encoded, final int vocabularySize) {
+	    CompletableFuture<?>[] routing = new CompletableFuture<?>[threads];
+	    for (int slice = 0; slice < threads; slice++) {
+		final int s = slice;
+		routing[slice] = CompletableFuture.runAsync(new Runnable() {
+			public void run() {
+			    routeSlice(s, encoded, sliceStart(s, encoded.length),
+				       sliceStart(s + 1, encoded.length),
+				       vocabularySize);
+			}
+		    }, workers);
+	    }
+	    if (order < 2)
+		return CompletableFuture.allOf(routing);
+	    return CompletableFuture.allOf(routing).thenCompose(done -> {
+		    CompletableFuture<?>[] counting = new CompletableFuture<?>[shards];
+		    for (int shard = 0; shard < shards; shard++) {
+			final int s = shard;
+			counting[shard] = CompletableFuture.runAsync(new Runnable() {
+				public void run() {
+				    countShard(s);
+				}
+			    }, workers);
+		    }
+		    return CompletableFuture.allOf(counting);
+		});
+	}
+
+	void routeSlice(int slice, int[][] encoded, int start, int end,
+			int vocabularySize) {
+	    NgramBuffer[] bigramOut = bigramBuffers[slice];
+	    NgramBuffer[] trigramOut = trigramBuffers[slice];
+	    for (int i = start; i < end; i++) {
+		int[] sentence = encoded[i];
+		sliceUnigrams[slice] = countUnigrams(sentence, sliceUnigrams[slice],
+						     vocabularySize);
+		if (order < 2)
+		    continue;
+		int word1 = Vocabulary.START_ID;
+		int word2 = Vocabulary.START_ID;
+		for (int j = 0; j <= sentence.length; j++) {
+		    int word = j < sentence.length ? sentence[j] : Vocabulary.STOP_ID;
+		    bigramOut[shardOf(word2)].add(word2, word);
+		    if (order >= 3) {
+			long key = Vocabulary.pack(word1, word2);
+			trigramOut[shardOf(key)].add(key, word);
+		    }
+		    word1 = word2;
+		    word2 = word;
+		}
+	    }
+	}
+
+	void countShard(int shard) {
+	    for (int slice = 0; slice < threads; slice++) {
+		bigramBuffers[slice][shard].drainInto(bigramContexts[shard],
+						      bigrams[shard]);
+		if (order >= 3)
+		    trigramBuffers[slice][shard].drainInto(trigramContexts[shard],
+							   trigrams[shard]);
+	    }
+	}
+
+	/**
+	 * Waits for a step, rethrowing what a thread threw.
+	 */
+	void join(CompletableFuture<Void> step) {
+	    try {
+		step.join();
+	    } catch (CompletionException e) {
+		if (e.getCause() instanceof RuntimeException)
+		    throw (RuntimeException)e.getCause();
+		if (e.getCause() instanceof Error)
+		    throw (Error)e.getCause();
+		throw e;
+	    }
+	}
+    }
+
+    // -----------------------------------------------------------------------
+
+    public Vocabulary getVocabulary() {
+	return vocabulary;
+    }
+
+    /**
+     * The highest order counted.
+     */
+    public int getOrder() {
+	return order;
+    }
+
+    private void freeze() {
+	if (frozen)
+	    return;
+	frozen = true;
+	unigrams = Arrays.copyOf(unigrams, vocabulary.size());
+	if (order >= 2) {
+	    bigramTable = new NgramTable(bigramContexts, bigrams);
+	    bigramContexts = null;
+	    bigrams = null;
+	}
+	if (order >= 3) {
+	    trigramTable = new NgramTable(trigramContexts, trigrams);
+	    trigramContexts = null;
+	    trigrams = null;
+	}
+    }
+
+    /**
+     * The unigram counts, indexed by word id.  The array is shared, not
+     * copied, and must not be modified.
+     */
+    double[] getUnigramCounts() {
+	freeze();
+	return unigrams;
+    }
+
+    /**
+     * The bigram counts; the context key of a bigram is the id of its
+     * first word.
+     */
+    public NgramTable getBigramTable() {
+	if (order < 2)
+	    throw new IllegalStateException("bigrams were not counted");
+	freeze();
+	return bigramTable;
+    }
+
+    /**
+     * The trigram counts; the context key of a trigram is its first two
+     * word ids, packed.
+     */
+    public NgramTable getTrigramTable() {
+	if (order < 3)
+	    throw new IllegalStateException("trigrams were not counted");
+	freeze();
+	return trigramTable;
+    }
+
+}
@@ -0,0 +1,305 @@
+package cs224n.langmodel;
+
+import cs224n.util.LongCounter;
+import cs224n.util.LongIndex;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A read-only table of n-gram counts in a sorted, flat layout (in the
+ * spirit of KenLM's sorted format).  The history of each n-gram (one word
+ * id for bigrams, two packed word ids for trigrams) is a context key; the
+ * context keys are kept in one sorted array, and the successors of context
+ * c are the slice [getStart(c), getEnd(c)) of two parallel arrays holding
+ * the successor word ids (sorted) and their counts.  Lookups are two
+ * searches over primitive arrays, and there is no per-context object.
+ *
+ * The arrays are held as nio buffers, so the same table works over heap
+ * arrays (built by freezing the counts gathered in training) and over a
+ * memory-mapped model file (see ModelFile).
+ */
+public class NgramTable {
+
+    private LongBuffer contexts;
+    private IntBuffer offsets;
+    private DoubleBuffer totals;
+    private IntBuffer words;
+    private IntBuffer counts;
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Freezes training counts.  The counter is keyed by
+     * Vocabulary.pack(context id, word id), where the context ids are the
+     * indices of the context keys in the given LongIndex.
+     */
+    public NgramTable(LongIndex contextIds, LongCounter ngramCounts) {
+	this(new LongIndex[] { contextIds }, new LongCounter[] { ngramCounts });
+    }
+
+    /**
+     * Freezes training counts held in several shards, each with its own
+     * context ids as above.  No context may be in more than one shard.
+     */
+    public NgramTable(LongIndex[] contextIds, LongCounter[] ngramCounts) {
+	int numContexts = 0;
+	for (LongIndex shard : contextIds) {
+	    numContexts += shard.size();
+	}
+	long[] contextArray = new long[numContexts];
+	int n = 0;
+	for (LongIndex shard : contextIds) {
+	    for (int c = 0; c < shard.size(); c++) {
+		contextArray[n++] = shard.get(c);
+	    }
+	}
+	Arrays.sort(contextArray);
+
+	// re-key each n-gram by the rank of its context, so that sorting
+	// groups the n-grams by context and orders each group by word id
+	int numNgrams = 0;
+	for (LongCounter shard : ngramCounts) {
+	    numNgrams += shard.size();
+	}
+	long[] ranked = new long[numNgrams];
+	int[] shardOfRank = new int[numContexts];
+	int[] idOfRank = new int[numContexts];
+	n = 0;
+	for (int s = 0; s < contextIds.length; s++) {
+	    int[] rank = new int[contextIds[s].size()];
+	    for (int c = 0; c < rank.length; c++) {
+		rank[c] = Arrays.binarySearch(contextArray, contextIds[s].get(c));
+		shardOfRank[rank[c]] = s;
+		idOfRank[rank[c]] = c;
+	    }
+	    for (long ngram : ngramCounts[s].keys()) {
+		ranked[n++] = Vocabulary.pack(rank[Vocabulary.first(ngram)],
+					      Vocabulary.second(ngram));
+	    }
+	}
+	Arrays.sort(ranked);
+
+	int[] offsetArray = new int[numContexts + 1];
+	double[] totalArray = new double[numContexts];
+	int[] wordArray = new int[ranked.length];
+	int[] countArray = new int[ranked.length];
+	for (int i = 0; i < ranked.length; i++) {
+	    int c = Vocabulary.first(ranked[i]);
+	    int word = Vocabulary.second(ranked[i]);
+	    LongCounter shard = ngramCounts[shardOfRank[c]];
+	    int count = (int)shard.getCount(Vocabulary.pack(idOfRank[c], word));
+	    wordArray[i] = word;
+	    countArray[i] = count;
+	    offsetArray[c + 1]++;
+	    totalArray[c] += count;
+	}
+	for (int c = 0; c < numContexts; c++) {
+	    offsetArray[c + 1] += offsetArray[c];
+	}
+
+	contexts = LongBuffer.wrap(contextArray);
+	offsets = IntBuffer.wrap(offsetArray);
+	totals = DoubleBuffer.wrap(totalArray);
+	words = IntBuffer.wrap(wordArray);
+	counts = IntBuffer.wrap(countArray);
+    }
+
+    /**
+     * Wraps buffers already in the table layout, for example views of a
+     * mapped model file.
+     */
+    NgramTable(LongBuffer contexts, IntBuffer offsets, DoubleBuffer totals,
+	       IntBuffer words, IntBuffer counts) {
+	this.contexts = contexts;
+	this.offsets = offsets;
+	this.totals = totals;
+	this.words = words;
+	this.counts = counts;
+    }
+
+    /**
+     * Returns a new table holding the counts of this table and the other
+     * added together (for example, the counts of a model and of new
+     * sentences it is updated with).  Neither table is changed.  The two
+     * tables are merged in one pass, since both are sorted by context and
+     * each context's successors by word.
+     */
+    public NgramTable merge(NgramTable other) {
+	int n = contextCount(), m = other.contextCount();
+	long[] contextArray = new long[n + m];
+	int[] offsetArray = new int[n + m + 1];
+	double[] totalArray = new double[n + m];
+	int[] wordArray = new int[size() + other.size()];
+	int[] countArray = new int[size() + other.size()];
+	int c = 0, k = 0;
+	for (int i = 0, j = 0; i < n || j < m; c++) {
+	    boolean fromThis = j == m || (i < n && getContext(i) <= other.getContext(j));
+	    boolean fromOther = i == n || (j < m && other.getContext(j) <= getContext(i));
+	    contextArray[c] = fromThis ? getContext(i) : other.getContext(j);
+	    int a = fromThis ? getStart(i) : 0, aEnd = fromThis ? getEnd(i) : 0;
+	    int b = fromOther ? other.getStart(j) : 0, bEnd = fromOther ? other.getEnd(j) : 0;
+	    while (a < aEnd || b < bEnd) {
+		int wordA = a < aEnd ? getWord(a) : Integer.MAX_VALUE;
+		int wordB = b < bEnd ? other.getWord(b) : Integer.MAX_VALUE;
+		int word = Math.min(wordA, wordB);
+		int count = 0;
+		if (wordA == word) count += getCount(a++);
+		if (wordB == word) count += other.getCount(b++);
+		wordArray[k] = word;
+		countArray[k++] = count;
+		totalArray[c] += count;
+	    }
+	    offsetArray[c + 1] = k;
+	    if (fromThis) i++;
+	    if (fromOther) j++;
+	}
+	return new NgramTable(LongBuffer.wrap(Arrays.copyOf(contextArray, c)),
+			      IntBuffer.wrap(Arrays.copyOf(offsetArray, c + 1)),
+			      DoubleBuffer.wrap(Arrays.copyOf(totalArray, c)),
+			      IntBuffer.wrap(Arrays.copyOf(wordArray, k)),
+			      IntBuffer.wrap(Arrays.copyOf(countArray, k)));
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * The number of distinct contexts.
+     */
+    public int contextCount() {
+	return contexts.limit();
+    }
+
+    /**
+     * The number of distinct n-grams.
+     */
+    public int size() {
+	return words.limit();
+    }
+
+    /**
+     * Returns the index of the context with the given key, or -1 if the
+     * context was never seen.  Context keys are close to uniformly spread
+     * (bigram contexts are nearly consecutive word ids), so the search
+     * alternates interpolation steps with bisection steps: it usually lands
+     * in a couple of probes, and never takes more than twice as many as a
+     * plain binary search.
+     */
+    public int findContext(long key) {
+	int lo = 0;
+	int hi = contexts.limit() - 1;
+	boolean interpolate = true;
+	while (lo <= hi) {
+	    long low = contexts.get(lo);
+	    long high = contexts.get(hi);
+	    if (key < low || key > high)
+		return -1;
+	    int mid;
+	    if (interpolate && high > low) {
+		mid = lo + (int)((double)(key - low) / (high - low) * (hi - lo));
+	    } else {
+		mid = (lo + hi) >>> 1;
+	    }
+	    interpolate = !interpolate;
+	    long midKey = contexts.get(mid);
+	    if (midKey < key) {
+		lo = mid + 1;
+	    } else if (midKey > key) {
+		hi = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -1;
+    }
+
+    public long getContext(int c) {
+	return contexts.get(c);
+    }
+
+    public int getStart(int c) {
+	return offsets.get(c);
+    }
+
+    public int getEnd(int c) {
+	return offsets.get(c + 1);
+    }
+
+    /**
+     * The total count of all n-grams in the context.
+     */
+    public double getTotal(int c) {
+	return totals.get(c);
+    }
+
+    public int getWord(int i) {
+	return words.get(i);
+    }
+
+    public int getCount(int i) {
+	return counts.get(i);
+    }
+
+    /**
+     * Returns the position of the word among the successors of context c,
+     * or -1 if it never followed c.
+     */
+    public int find(int c, int word) {
+	int lo = offsets.get(c);
+	int hi = offsets.get(c + 1) - 1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    int midWord = words.get(mid);
+	    if (midWord < word) {
+		lo = mid + 1;
+	    } else if (midWord > word) {
+		hi = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -1;
+    }
+
+    /**
+     * Returns the count of the word after context c, or zero.
+     */
+    public int getCount(int c, int word) {
+	int i = find(c, word);
+	return i < 0 ? 0 : counts.get(i);
+    }
+
+    /**
+     * Returns the count of the word after the context with the given key,
+     * or zero.
+     */
+    public int getNgramCount(long contextKey, int word) {
+	int c = findContext(contextKey);
+	return c < 0 ? 0 : getCount(c, word);
+    }
+
+    // -----------------------------------------------------------------------
+
+    LongBuffer contextBuffer() {
+	return contexts.duplicate();
+    }
+
+    IntBuffer offsetBuffer() {
+	return offsets.duplicate();
+    }
+
+    DoubleBuffer totalBuffer() {
+	return totals.duplicate();
+    }
+
+    IntBuffer wordBuffer() {
+	return words.duplicate();
+    }
+
+    IntBuffer countBuffer() {
+	return counts.duplicate();
+    }
+
+}
@@ -0,0 +1,215 @@
+package cs224n.langmodel;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Checks, for every context of a backoff model, that the distribution over
+ * the next word sums to one.  <p/>
+ *
+ * Summing each context's distribution over the whole vocabulary costs
+ * O(contexts x vocabulary), which is why checkModel() used to look at a few
+ * random contexts only.  In a backoff model the sum has a closed form:
+ * every word outside a context's successors gets alpha times its
+ * lower-order probability, so the context's mass is
+ * <pre>
+ *   sum over successors s of P(s | context)
+ *     + alpha(context) * (M(lower context) - sum over s of P(s | lower context))
+ * </pre>
+ * where M(lower context) is the mass of the lower-order distribution, found
+ * the same way, down to the unigram distribution, which is summed once.
+ * (A context never seen in training backs off entirely, and has the mass of
+ * its lower context.)  So the check visits each n-gram once, in time
+ * linear in the size of the model; the contexts of an order are checked in
+ * parallel.  <p/>
+ *
+ * The event space is the one checkModel() has always used: every word seen
+ * in training, and the unknown word.  A model updated during the check is
+ * checked as it was when the check began.
+ */
+public class NormalizationCheck {
+
+    /**
+     * The number of worst contexts reported.
+     */
+    public static final int WORST = 10;
+
+    private int contextCount;
+    private double worstMass = 1.0;
+    private List<String> worstContexts = new ArrayList<String>();
+    private List<Double> worstMasses = new ArrayList<Double>();
+
+    // the masses of each order, by context index
+    private double unigramMass;
+    private double[] bigramMasses;
+
+    private NormalizationCheck() {
+    }
+
+    /**
+     * Checks a unigram model.
+     */
+    public static NormalizationCheck check(UnigramModel model) {
+	NormalizationCheck check = new NormalizationCheck();
+	check.checkUnigrams(model.getState());
+	check.report(new double[] {check.unigramMass}, c -> "()");
+	return check;
+    }
+
+    /**
+     * Checks every context of a bigram model.
+     */
+    public static NormalizationCheck check(BigramModel model) {
+	NormalizationCheck check = new NormalizationCheck();
+	BigramModel.State state = model.getState();
+	check.checkUnigrams(state.lower);
+	check.checkBigrams(state);
+	NgramTable table = state.table;
+	Vocabulary vocabulary = state.vocabulary;
+	check.report(check.bigramMasses,
+		     c -> "(" + vocabulary.getWord((int)table.getContext(c)) + ")");
+	return check;
+    }
+
+    /**
+     * Checks every context of a trigram model.
+     */
+    public static NormalizationCheck check(TrigramModel model) {
+	NormalizationCheck check = new NormalizationCheck();
+	TrigramModel.State state = model.getState();
+	check.checkUnigrams(state.lower.lower);
+	check.checkBigrams(state.lower);
+	NgramTable table = state.table;
+	Vocabulary vocabulary = state.vocabulary;
+	check.report(check.checkTrigrams(state), c -> {
+		long context = table.getContext(c);
+		return "(" + vocabulary.getWord(Vocabulary.first(context)) + ", " +
+		    vocabulary.getWord(Vocabulary.second(context)) + ")";
+	    });
+	return check;
+    }
+
+    // -----------------------------------------------------------------------
+
+    private void checkUnigrams(UnigramModel.State model) {
+	int size = model.vocabulary.size();
+	double mass = 0.0;
+	for (int id = 0; id < size; id++) {
+	    if (model.getCount(id) > 0)
+		mass += model.getWordProbability(id);
+	}
+	unigramMass = mass + model.getWordProbability(Vocabulary.UNKNOWN_ID);
+    }
+
+    private void checkBigrams(BigramModel.State model) {
+	NgramTable table = model.table;
+	DoubleBuffer alphas = model.preWordAlpha.duplicate();
+	UnigramModel.State lower = model.lower;
+	double[] masses = new double[table.contextCount()];
+	IntStream.range(0, masses.length).parallel().forEach(c -> {
+		int preword = (int)table.getContext(c);
+		double seen = 0.0, lowerSeen = 0.0;
+		for (int i = table.getStart(c); i < table.getEnd(c); i++) {
+		    seen += model.getWordProbability(preword, table.getWord(i));
+		    lowerSeen += lower.getWordProbability(table.getWord(i));
+		}
+		masses[c] = seen + alphas.get(c) * (unigramMass - lowerSeen);
+	    });
+	bigramMasses = masses;
+    }
+
+    private double[] checkTrigrams(TrigramModel.State model) {
+	NgramTable table = model.table;
+	DoubleBuffer alphas = model.preWordAlpha.duplicate();
+	BigramModel.State lower = model.lower;
+	NgramTable lowerTable = lower.table;
+	double[] masses = new double[table.contextCount()];
+	IntStream.range(0, masses.length).parallel().forEach(c -> {
+		long context = table.getContext(c);
+		int word1 = Vocabulary.first(context);
+		int word2 = Vocabulary.second(context);
+		int lowerContext = lowerTable.findContext(word2);
+		double lowerMass = lowerContext < 0 ? unigramMass
+		    : bigramMasses[lowerContext];
+		double seen = 0.0, lowerSeen = 0.0;
+		for (int i = table.getStart(c); i < table.getEnd(c); i++) {
+		    seen += model.getWordProbability(word1, word2, table.getWord(i));
+		    lowerSeen += lower.getWordProbability(word2, table.getWord(i));
+		}
+		masses[c] = seen + alphas.get(c) * (lowerMass - lowerSeen);
+	    });
+	return masses;
+    }
+
+    private interface Context {
+	String describe(int c);
+    }
+
+    /**
+     * Records the contexts whose masses are furthest from one.
+     */
+    private void report(double[] masses, Context context) {
+	contextCount = masses.length;
+	List<Integer> order = new ArrayList<Integer>(masses.length);
+	for (int c = 0; c < masses.length; c++) {
+	    order.add(c);
+	}
+	Collections.sort(order, (a, b) -> {
+		int cmp = Double.compare(Math.abs(masses[b] - 1.0),
+					 Math.abs(masses[a] - 1.0));
+		return cmp != 0 ? cmp : a - b;
+	    });
+	for (int k = 0; k < Math.min(WORST, order.size()); k++) {
+	    int c = order.get(k);
+	    worstContexts.add(context.describe(c));
+	    worstMasses.add(masses[c]);
+	}
+	if (!worstMasses.isEmpty())
+	    worstMass = worstMasses.get(0);
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * The number of contexts checked (of the model's highest order).
+     */
+    public int getContextCount() {
+	return contextCount;
+    }
+
+    /**
+     * The mass of the context furthest from summing to one.
+     */
+    public double getWorstMass() {
+	return worstMass;
+    }
+
+    /**
+     * The WORST contexts furthest from summing to one, worst first, as
+     * "(word1, word2)" strings.
+     */
+    public List<String> getWorstContexts() {
+	return worstContexts;
+    }
+
+    /**
+     * The masses of the worst contexts, in the same order.
+     */
+    public List<Double> getWorstMasses() {
+	return worstMasses;
+    }
+
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	sb.append(contextCount).append(" contexts checked; worst:");
+	for (int k = 0; k < worstContexts.size(); k++) {
+	    sb.append("\n  ").append(worstContexts.get(k))
+		.append(" sums to ").append(worstMasses.get(k));
+	}
+	return sb.toString();
+    }
+
+}
@@ -0,0 +1,130 @@
+package cs224n.langmodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The default implementation of LanguageModel.generateSentences: the
+ * sentences are generated in slices of SLICE_SIZE, on the common
+ * ForkJoinPool, each slice into its own positions of the result.  <p/>
+ *
+ * Each slice draws from its own SplittableRandom, split off the seeded
+ * root in slice order before any slice runs, so which thread generates a
+ * slice, and when, makes no difference to its sentences: the output
+ * depends only on the model, the seed and n.  (No thread touches
+ * Math.random's shared generator, either.)
+ */
+class SentenceGenerator extends RecursiveAction {
+
+    static final long serialVersionUID = 1L;
+
+    /**
+     * The default cap on the length of a generated sentence, so that a
+     * model which rarely generates the stop token cannot loop for ever.
+     */
+    static final int MAX_LENGTH = 1000;
+
+    private static final int SLICE_SIZE = 256;
+    private static final String UNKNOWN = "*UNKNOWN*";
+
+    private LanguageModel model;
+    private List<List<String>> sentences;
+    private SplittableRandom[] randoms;
+    private int maxLength;
+    private int start;
+    private int end;
+
+    private SentenceGenerator(LanguageModel model, List<List<String>> sentences,
+			      SplittableRandom[] randoms, int maxLength,
+			      int start, int end) {
+	this.model = model;
+	this.sentences = sentences;
+	this.randoms = randoms;
+	this.maxLength = maxLength;
+	this.start = start;
+	this.end = end;
+    }
+
+    /**
+     * Returns n sentences generated from the model.
+     */
+    static List<List<String>> generate(LanguageModel model, int n, long seed,
+				       int maxLength) {
+	if (n < 0)
+	    throw new IllegalArgumentException("cannot generate " + n + " sentences");
+	if (maxLength < 0)
+	    throw new IllegalArgumentException("bad maximum length " + maxLength);
+	// filled in place; each slice sets only its own positions
+	List<List<String>> sentences =
+	    new ArrayList<List<String>>(Collections.<List<String>>nCopies(n, null));
+	SplittableRandom root = new SplittableRandom(seed);
+	SplittableRandom[] randoms = new SplittableRandom[(n + SLICE_SIZE - 1) / SLICE_SIZE];
+	for (int slice = 0; slice < randoms.length; slice++) {
+	    randoms[slice] = root.split();
+	}
+	SentenceGenerator task = new SentenceGenerator(model, sentences, randoms,
+						       maxLength, 0, randoms.length);
+	if (randoms.length <= 1) {
+	    task.compute();
+	} else {
+	    ForkJoinPool.commonPool().invoke(task);
+	}
+	return sentences;
+    }
+
+    /**
+     * Generates slices start to end.
+     */
+    protected void compute() {
+	if (end - start <= 1) {
+	    for (int slice = start; slice < end; slice++) {
+		generateSlice(slice);
+	    }
+	    return;
+	}
+	int mid = (start + end) >>> 1;
+	invokeAll(new SentenceGenerator(model, sentences, randoms, maxLength, start, mid),
+		  new SentenceGenerator(model, sentences, randoms, maxLength, mid, end));
+    }
+
+    private void generateSlice(int slice) {
+	int first = slice * SLICE_SIZE;
+	int last = Math.min(first + SLICE_SIZE, sentences.size());
+	if (!(model instanceof IncrementalLanguageModel)) {
+	    for (int i = first; i < last; i++) {
+		sentences.set(i, model.generateSentence());
+	    }
+	    return;
+	}
+	IncrementalLanguageModel incremental = (IncrementalLanguageModel)model;
+	DoubleSupplier random = randoms[slice]::nextDouble;
+	for (int i = first; i < last; i++) {
+	    sentences.set(i, generateSentence(incremental, random));
+	}
+    }
+
+    private List<String> generateSentence(IncrementalLanguageModel model,
+					  DoubleSupplier random) {
+	List<String> sentence = new ArrayList<String>();
+	long state = model.beginSentence();
+	while (sentence.size() < maxLength) {
+	    int word = model.sampleWord(state, random);
+	    if (word == Vocabulary.STOP_ID)
+		break;
+	    if (word < 0) {
+		sentence.add(UNKNOWN);
+		word = Vocabulary.UNKNOWN_ID;
+	    } else {
+		sentence.add(model.getWord(word));
+	    }
+	    state = model.nextState(state, word);
+	}
+	return sentence;
+    }
+
+}
@@ -9,11 +9,12 @@ import cs224n.util.CounterMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.function.DoubleSupplier;
 
 /**
  * A language model -- uses bigram counts
  */
-public class SimpleBackoffModel implements LanguageModel {
+public class SimpleBackoffModel implements IncrementalLanguageModel {
     
     private static final String START= "<S>";
     private static final String STOP = "</S>";
@@ -30,9 +31,9 @@ public class SimpleBackoffModel implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public SimpleBackoffModel() {
-	Unigram = new UnigramModel();
-	Bigram = new BigramModel();
 	Trigram = new TrigramModel();
+	Bigram = Trigram.getBigramModel();
+	Unigram = Bigram.uniModel;
     }
     
     /**
@@ -43,13 +44,19 @@ public class SimpleBackoffModel implements LanguageModel {
      */
     public SimpleBackoffModel(Collection<List<String>> sentences) {
 	this();
-	Unigram = new UnigramModel(sentences);
-	Bigram = new BigramModel(sentences);
-	Trigram = new TrigramModel(sentences); 
+	train(sentences);
     }
 	    
     // -----------------------------------------------------------------------
     
+    /**
+     * Sets the number of threads used to count a corpus (see
+     * LanguageModel.setTrainingThreads); the components train together.
+     */
+    public void setTrainingThreads(int threads) {
+	Trigram.setTrainingThreads(threads);
+    }
+
     /**
      * Constructs a unigram language model from a collection of sentences.  A
      * special stop token is appended to each sentence, and then the
@@ -57,8 +64,8 @@ public class SimpleBackoffModel implements LanguageModel {
      * collection of sentences are compiled.
      */
     public void train(Collection<List<String>> sentences) {
-	Unigram.train(sentences);
-	Bigram.train(sentences);
+	// one pass counts all three orders; the bigram and unigram components
+	// are the ones the trigram model backs off to
 	Trigram.train(sentences);
 	/*double[] coefsTemp = {0.0,0.0,0.0};
 	double bestP = 0.0;
@@ -104,11 +111,11 @@ public class SimpleBackoffModel implements LanguageModel {
 	String wordN1 = sentence.get(index - 1).intern();
 	String word = sentence.get(index).intern();
 	if(Trigram.getCount(wordN2, wordN1, word) > 0){
-	    Trigram.getWordProbability(sentence, index);
+	    return Trigram.getWordProbability(sentence, index);
 	} else if(Bigram.getCount(wordN1, word) > 0) {
-	    Bigram.getWordProbability(sentence, index);
+	    return Bigram.getWordProbability(sentence, index);
 	} else {
-	    Unigram.getWordProbability(sentence,index);
+	    return Unigram.getWordProbability(sentence,index);
 	}
     }
     
@@ -118,15 +125,84 @@ public class SimpleBackoffModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 2; index < stoppedSentence.size(); index++) {
-	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     * The components share one vocabulary, so each word is looked up once.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	double logProbability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = vocabulary.getId(w);
+	    logProbability += Math.log(getWordProbability(word1, word2, word));
+	    word1 = word2;
+	    word2 = word;
+	}
+	logProbability += Math.log(getWordProbability(word1, word2, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	Vocabulary vocabulary = Trigram.getVocabulary();
+	int word1 = index > 1 ? vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(getWordProbability(word1, word2, word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
+
+    public int getWordId(String word) {
+	return Trigram.getVocabulary().getId(word);
+    }
+
+    public String getWord(int id) {
+	return Trigram.getVocabulary().getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(Vocabulary.first(state),
+					   Vocabulary.second(state), word));
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    /**
+     * Samples the trigram component.  The scores of this model are not one
+     * distribution (a word takes the probability of the highest order
+     * which saw it, and the three are not renormalized), so there is none
+     * to sample exactly; the trigram model, which backs off over the same
+     * counts, is the nearest one that is.
+     */
+    public int sampleWord(long state, DoubleSupplier random) {
+	return Trigram.sampleWord(state, random);
+    }
+    
+    private double getWordProbability(int word1, int word2, int word) {
+	if (Trigram.getTable().getNgramCount(Vocabulary.pack(word1, word2), word) > 0) {
+	    return Trigram.getWordProbability(word1, word2, word);
+	} else if (Bigram.getTable().getNgramCount(word2, word) > 0) {
+	    return Bigram.getWordProbability(word2, word);
+	} else {
+	    return Unigram.getWordProbability(word);
 	}
-	return probability;
     }
     
     /**
@@ -138,10 +214,8 @@ public class SimpleBackoffModel implements LanguageModel {
 		coefs[0] * Trigram.checkModel());
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled from the trigram component (see
+     * sampleWord).
      */
     public String generateWord(String prewordTwo, String prewordOne) {
 	return Trigram.generateWord(prewordTwo, prewordOne);
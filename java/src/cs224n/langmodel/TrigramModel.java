@@ -1,30 +1,81 @@
 package cs224n.langmodel;
 
 import cs224n.util.Counter;
-import cs224n.util.CounterMap;
+import cs224n.util.LongCounter;
+import cs224n.util.LongIndex;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
-import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 
 /**
- * A language model -- uses bigram counts
+ * A language model -- uses trigram counts.  Each two-word context is packed
+ * into a long (see Vocabulary.pack) and given a dense context id by a
+ * LongIndex; trigrams are then counted under the packed (context id, word
+ * id) key.  At the end of training the counts are frozen into a read-only
+ * NgramTable, and the backoff weights live in an array parallel to its
+ * contexts.  Backing off to the bigram model just reuses the second word id
+ * of the context, so scoring does no String work at all.  <p/>
+ *
+ * As in BigramModel, what training and update() compute is kept in one
+ * immutable State, replaced with a single (volatile) write.
  */
-public class TrigramModel implements LanguageModel {
+public class TrigramModel implements IncrementalLanguageModel {
     
-    private static final String START= "<S>";
-    private static final String STOP = "</S>";
-    //private static final String SEP = "=*=";
-    
-    private CounterMap<String, String> wordCounter;
-    private Counter<String> totalMap;
-
     private BigramModel biModel;
-    private HashMap<String, Double> preWordAlpha;
     private double discount = .75;
-    
-    private String SPLIT = "==";
+    private int threads = 1;
+    private volatile State current;
+    private volatile boolean readOnly;
+
+    /**
+     * The trigram counts and backoff weights, with the bigram state they
+     * back off to.
+     */
+    static class State {
+	final Vocabulary vocabulary;
+	final NgramTable table;
+	final DoubleBuffer preWordAlpha;
+	final BigramModel.State lower;
+	final double discount;
+	private WordSampler sampler;    // built on first use
+
+	State(BigramModel.State lower, NgramTable table,
+	      DoubleBuffer preWordAlpha, double discount) {
+	    this.vocabulary = lower.vocabulary;
+	    this.lower = lower;
+	    this.table = table;
+	    this.preWordAlpha = preWordAlpha;
+	    this.discount = discount;
+	}
+
+	double getWordProbability(int word1, int word2, int word) {
+	    int context = table.findContext(Vocabulary.pack(word1, word2));
+	    if (context < 0)                // unseen context
+		return lower.getWordProbability(word2, word);
+	    int count = table.getCount(context, word);
+	    if (count == 0) {               // unknown word
+		return preWordAlpha.get(context) * lower.getWordProbability(word2, word);
+	    }
+	    return (count - discount) / table.getTotal(context);
+	}
+
+	synchronized WordSampler getSampler() {
+	    if (sampler == null) {
+		sampler = new WordSampler(new WordSampler.Distribution() {
+			public double getWordProbability(long context, int word) {
+			    return State.this.getWordProbability(Vocabulary.first(context),
+								 Vocabulary.second(context),
+								 word);
+			}
+		    }, WordSampler.seenWords(lower.lower), table, discount,
+		    lower.getSampler());
+	    }
+	    return sampler;
+	}
+    }
     
     // -----------------------------------------------------------------------
     
@@ -32,10 +83,27 @@ public class TrigramModel implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public TrigramModel() {
-	wordCounter = new CounterMap<String, String>();
-	totalMap = new Counter<String>();
-	biModel = new BigramModel();
-	preWordAlpha = new HashMap<String, Double>();
+	this(new Vocabulary());
+    }
+    
+    /**
+     * Constructs a new, empty trigram language model which assigns word ids
+     * from the given vocabulary.
+     */
+    public TrigramModel(Vocabulary vocabulary) {
+	biModel = new BigramModel(vocabulary);
+	current = new State(biModel.getState(),
+			    new NgramTable(new LongIndex(), new LongCounter()),
+			    DoubleBuffer.allocate(0), discount);
+    }
+    
+    /**
+     * Rebuilds a trained model from its parts (see ModelFile).
+     */
+    TrigramModel(Vocabulary vocabulary, BigramModel biModel,
+		 NgramTable table, DoubleBuffer preWordAlpha) {
+	this.biModel = biModel;
+	current = new State(biModel.getState(), table, preWordAlpha, discount);
     }
     
     /**
@@ -51,40 +119,96 @@ public class TrigramModel implements LanguageModel {
     
     public double getCount(String s1, String s2, String s3)
     {
-	String key = concatStrings(s1, s2).intern();
-	Counter<String> counter = wordCounter.getCounter(key);
-	double count = counter.getCount(s3);
-	return count;
+	State s = current;
+	return s.table.getNgramCount(Vocabulary.pack(s.vocabulary.getId(s1),
+						     s.vocabulary.getId(s2)),
+				     s.vocabulary.getId(s3));
     }
     
-    /*public String[] getInitPhrase()
-    {
-	double pos = Math.random();
-	Set<String> keys = wordCounter.keySet();
-	String key = ((String)(keys.toArray())[(int)(keys.size() *
-						     pos)]).intern();
-	String[] ps = new String[2];
-	ps[0] = key.substring(0, key.indexOf(SEP));
-	ps[1] = key.substring(key.indexOf(SEP)+ SEP.length());
-	return ps;
-	}*/
-
-    public CounterMap<String, String> getCounterMap()
+    /**
+     * Returns every two-word context seen in training, as {s1, s2} pairs.
+     */
+    public List<String[]> getContexts()
     {
-	return wordCounter;
+	State s = current;
+	NgramTable table = s.table;
+	Vocabulary vocabulary = s.vocabulary;
+	List<String[]> result = new ArrayList<String[]>(table.contextCount());
+	for (int context = 0; context < table.contextCount(); context++) {
+	    long key = table.getContext(context);
+	    result.add(new String[] {vocabulary.getWord(Vocabulary.first(key)),
+				     vocabulary.getWord(Vocabulary.second(key))});
+	}
+	return result;
     }
     
+    /**
+     * Returns the successors of the context (s1, s2) with their counts.
+     */
     public Counter<String> getCounter(String s1, String s2){
-	return wordCounter.getCounter(concatStrings(s1,s2));
+	State s = current;
+	NgramTable table = s.table;
+	Vocabulary vocabulary = s.vocabulary;
+	Counter<String> counter = new Counter<String>();
+	int context = table.findContext(Vocabulary.pack(vocabulary.getId(s1),
+							vocabulary.getId(s2)));
+	if (context < 0)
+	    return counter;
+	for (int i = table.getStart(context); i < table.getEnd(context); i++) {
+	    counter.setCount(vocabulary.getWord(table.getWord(i)),
+			     table.getCount(i));
+	}
+	return counter;
     }
 
-    public String[] split(String s)
-    {
-	return s.split(SPLIT);
+    public Vocabulary getVocabulary() {
+	return current.vocabulary;
+    }
+
+    BigramModel getBigramModel() {
+	return biModel;
     }
 
-    public String concatStrings(String s1, String s2){
-	return s1 + SPLIT + s2;
+    /**
+     * Makes the model, and the models it backs off to, read-only (see
+     * UnigramModel.setReadOnly).
+     */
+    public void setReadOnly() {
+	readOnly = true;
+	biModel.setReadOnly();
+    }
+
+    public boolean isReadOnly() {
+	return readOnly;
+    }
+
+    /**
+     * Sets the number of threads used to count a corpus (see
+     * LanguageModel.setTrainingThreads), for this model and the models it
+     * backs off to.
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+	biModel.setTrainingThreads(threads);
+    }
+
+    private void checkWritable() {
+	if (readOnly)
+	    throw new IllegalStateException("model is read-only");
+    }
+    
+    State getState() {
+	return current;
+    }
+
+    NgramTable getTable() {
+	return current.table;
+    }
+
+    DoubleBuffer getAlphas() {
+	return current.preWordAlpha.duplicate();
     }
     
     // -----------------------------------------------------------------------
@@ -96,62 +220,89 @@ public class TrigramModel implements LanguageModel {
      * collection of sentences are compiled.
      */
     public void train(Collection<List<String>> sentences) {
-	biModel.train(sentences);
+	checkWritable();
+	train(new NgramCounts(current.vocabulary, 3, sentences, threads));
+    }
+    
+    /**
+     * Trains the model, and the bigram and unigram models it backs off to,
+     * from counts gathered by an NgramCounts, whose vocabulary the model
+     * adopts.  All three orders come out of the same single pass over the
+     * corpus.
+     */
+    public void train(NgramCounts ngramCounts) {
+	checkWritable();
+	biModel.train(ngramCounts);
+	BigramModel.State lower = biModel.getState();
+	NgramTable table = ngramCounts.getTrigramTable();
 
-	wordCounter = new CounterMap<String, String>();
-	for (List<String> sentence : sentences) {
-	    List<String> stoppedSentence = new ArrayList<String>(sentence);
-	    stoppedSentence.add(0, START);
-	    stoppedSentence.add(0, START);
-	    stoppedSentence.add(STOP);
-	    for(int i = 2; i < stoppedSentence.size(); i++){
-		String key = concatStrings(stoppedSentence.get(i-2),
-					   stoppedSentence.get(i-1)).intern();
-		//System.out.println(key);
-		wordCounter.incrementCount(key,
-					   stoppedSentence.get(i).intern(),
-					   1.0);
-	    }
+	double[] alpha = new double[table.contextCount()];
+	for (int context = 0; context < alpha.length; context++) {
+	    alpha[context] = computeAlpha(lower, table, context);
 	}
+	current = new State(lower, table, DoubleBuffer.wrap(alpha), discount);
+    }
 
-	for(String word : wordCounter.keySet()){
-	    totalMap.setCount(word, wordCounter.getCounter(word).totalCount());
-	}
-	
-	for(String firstWord : wordCounter.keySet()){
-	    //System.out.println(firstWord + " " + firstWord.split(SPLIT).length);
-	    String[] words = firstWord.split(SPLIT);
-	    String word2 = words.length == 1 ? "" : words[1]; 
-	    String word1 = words[0];
+    /**
+     * Adds the counts of more sentences to a trained model, as if it had
+     * been trained on them too.  The model (and the models it backs off
+     * to) keeps answering queries while it is updated, from its old counts
+     * until the update is complete, and from the new counts after.
+     */
+    public synchronized void update(Collection<List<String>> sentences) {
+	checkWritable();
+	update(new NgramCounts(current.vocabulary.copy(), 3, sentences, threads));
+    }
+
+    /**
+     * Adds counts gathered by an NgramCounts to the model's counts (see
+     * BigramModel.update).  The new trigrams are merged into the table, and
+     * only the backoff weights of the contexts the new counts touch are
+     * computed again.  The weight of a context (w1, w2) depends on its own
+     * counts and on the bigram probabilities of its successors after w2;
+     * every successor was seen after w2 in training, so those depend only
+     * on the counts of the bigram context w2.  A weight whose trigram
+     * context and bigram context both got no new counts is copied.
+     */
+    public synchronized void update(NgramCounts added) {
+	checkWritable();
+	State old = current;
+	NgramTable addedTrigrams = added.getTrigramTable();
+	NgramTable addedBigrams = added.getBigramTable();
+	NgramTable table = old.table.merge(addedTrigrams);
+	biModel.update(added);
+	BigramModel.State lower = biModel.getState();
 
-	    Counter<String> thirdWords = wordCounter.getCounter(firstWord);
-	    int firstTotal = (int)thirdWords.totalCount();
-	    double sum = 0.0, denom = 1.0;
-	    for (String thirdWord : thirdWords.keySet()){
-		sum += (thirdWords.getCount(thirdWord) - discount) / firstTotal;
-		denom -= biModel.getWordProbability(word2, thirdWord);
+	double[] alpha = new double[table.contextCount()];
+	for (int context = 0; context < alpha.length; context++) {
+	    long key = table.getContext(context);
+	    if (addedTrigrams.findContext(key) >= 0
+		|| addedBigrams.findContext(Vocabulary.second(key)) >= 0) {
+		alpha[context] = computeAlpha(lower, table, context);
+	    } else {
+		alpha[context] = old.preWordAlpha.get(old.table.findContext(key));
 	    }
-	    preWordAlpha.put(firstWord, (1-sum) / denom);
-	    //System.out.println(firstWord + " " + sum + " " + denom + " " + (1-sum) / denom);
 	}
-	
+	current = new State(lower, table, DoubleBuffer.wrap(alpha), discount);
+    }
+
+    private double computeAlpha(BigramModel.State lower, NgramTable table,
+				int context) {
+	int word2 = Vocabulary.second(table.getContext(context));
+	double firstTotal = table.getTotal(context);
+	double sum = 0.0, denom = 1.0;
+	for (int i = table.getStart(context); i < table.getEnd(context); i++) {
+	    sum += (table.getCount(i) - discount) / firstTotal;
+	    denom -= lower.getWordProbability(word2, table.getWord(i));
+	}
+	return (1-sum) / denom;
     }
     
     
     // -----------------------------------------------------------------------
     
-    private double getWordProbability(String preword, String word) {
-	Counter<String> counter = wordCounter.getCounter(preword);
-	double count = counter.getCount(word);
-	double total = totalMap.getCount(preword);
-	if (count == 0) {                   // unknown word
-	    // System.out.println("UNKNOWN WORD: " + sentence.get(index));
-	    //return 1.0 / (total + 1.0);
-	    return (preWordAlpha.containsKey(preword) ? preWordAlpha.get(preword) : 1) * 
-		biModel.getWordProbability(preword.split(SPLIT)[1], word);
-	
-	}
-	return (count - discount) / total;
+    public double getWordProbability(int word1, int word2, int word) {
+	return current.getWordProbability(word1, word2, word);
     }
     
     /**
@@ -161,10 +312,10 @@ public class TrigramModel implements LanguageModel {
      * before.
      */
     public double getWordProbability(List<String> sentence, int index) {
-	String word = sentence.get(index).intern();
-	return getWordProbability(concatStrings(sentence.get(index-2).intern(),
-						sentence.get(index-1).intern()).intern(),
-				  word);
+	State s = current;
+	return s.getWordProbability(s.vocabulary.getId(sentence.get(index-2)),
+				    s.vocabulary.getId(sentence.get(index-1)),
+				    s.vocabulary.getId(sentence.get(index)));
     }
     
     /**
@@ -173,71 +324,86 @@ public class TrigramModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(0, START);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 2; index < stoppedSentence.size(); index++) {
-	    probability *= getWordProbability(stoppedSentence, index);
-	}
-	return probability;
+	return Math.exp(getSentenceLogProbability(sentence));
     }
     
     /**
-     * checks if the probability distribution properly sums up to 1
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
      */
-    public double checkModel() {
-	double sum = 0.0;
-	int check = 10;
-	int size = wordCounter.keySet().size();
-	Object[] Words = (wordCounter.keySet()).toArray();
-
-	for(int i = 0; i < check; i++){
-	    int num = (int)(Math.random() * size);
-	    String preword = ((String)Words[num]).intern();
-	    Counter<String> prewordCounter = wordCounter.getCounter(preword);
-	    for(String word : biModel.uniModel.wordCounter.keySet()){	    
-		sum += getWordProbability(preword, word);
-	    }
-	    sum += getWordProbability(preword, "*UNK*");
+    public double getSentenceLogProbability(List<String> sentence) {
+	State s = current;
+	double logProbability = 0.0;
+	int word1 = Vocabulary.START_ID;
+	int word2 = Vocabulary.START_ID;
+	for (String w : sentence) {
+	    int word = s.vocabulary.getId(w);
+	    logProbability += Math.log(s.getWordProbability(word1, word2, word));
+	    word1 = word2;
+	    word2 = word;
 	}
+	logProbability += Math.log(s.getWordProbability(word1, word2, Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	State s = current;
+	int word1 = index > 1 ? s.vocabulary.getId(sentence.get(index-2))
+	    : Vocabulary.START_ID;
+	int word2 = index > 0 ? s.vocabulary.getId(sentence.get(index-1))
+	    : Vocabulary.START_ID;
+	int word = index < sentence.size() ? s.vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(s.getWordProbability(word1, word2, word));
+    }
 
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): the state is the
+    // ids of the last two words, packed
 
-	// since this is a bigram model, 
-	// the event space is everything in the vocabulary (including START)
-	// and a UNK token
-	
-	// this loop goes through the vocabulary (which includes START)
-	//sum += wordCounter.totalCount();
-	/*
-	  for (String word : wordCounter.keySet()) {
-	    sum += getWordProbability(word);
-	}
-	*/
-	// remember to add the UNK. In this EmpiricalUnigramLanguageModel
-	// we assume there is only one UNK, so we add...
-	//sum += 1.0 / (total + 1.0);
-	return sum/check;
+    public int getWordId(String word) {
+	return current.vocabulary.getId(word);
+    }
+
+    public String getWord(int id) {
+	return current.vocabulary.getWord(id);
+    }
+
+    public long beginSentence() {
+	return Vocabulary.pack(Vocabulary.START_ID, Vocabulary.START_ID);
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(Vocabulary.first(state),
+					   Vocabulary.second(state), word));
+    }
+
+    public long nextState(long state, int word) {
+	return Vocabulary.pack(Vocabulary.second(state), word);
+    }
+
+    public int sampleWord(long state, DoubleSupplier random) {
+	return current.getSampler().sample(state, random);
+    }
+    
+    /**
+     * checks if the probability distribution properly sums up to 1: every
+     * context is checked (see NormalizationCheck), and the sum of the one
+     * furthest from 1 is returned
+     */
+    public double checkModel() {
+	return NormalizationCheck.check(this).getWorstMass();
     }    
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, in constant time
+     * once the context has been sampled from before (see WordSampler).
      */
     public String generateWord(String prewordTwo, String prewordOne) {
-	String preword = concatStrings(prewordTwo, prewordOne).intern();
-	double sample = Math.random();
-	double sum = 0.0;
-	Counter<String> subList = wordCounter.getCounter(preword);
-	for (String word : biModel.uniModel.wordCounter.keySet()) {
-	    sum += getWordProbability(preword, word);//subList.getCount(word) / subList.totalCount();
-	    if (sum > sample) {
-		return word;
-	    }
-	}
-	return "*UNKNOWN*";   // a little probability mass was reserved for unknowns
+	State s = current;
+	int id = s.getSampler().sample(Vocabulary.pack(s.vocabulary.getId(prewordTwo),
+						       s.vocabulary.getId(prewordOne)),
+				       ThreadLocalRandom.current()::nextDouble);
+	return id < 0 ? "*UNKNOWN*" : s.vocabulary.getWord(id);
     }
     
     /**
@@ -245,12 +411,18 @@ public class TrigramModel implements LanguageModel {
      * words until the stop token is generated, and return the concatenation.
      */
     public List<String> generateSentence() {
+	State s = current;
+	WordSampler sampler = s.getSampler();
+	DoubleSupplier random = ThreadLocalRandom.current()::nextDouble;
 	List<String> sentence = new ArrayList<String>();
-	String oldWord = START;
-	String word = generateWord(START,oldWord).intern();
-	while (!word.equals(STOP)) {
-	    sentence.add(word);
-	    String temp  = generateWord(oldWord,word).intern();
+	int oldWord = Vocabulary.START_ID;
+	int word = sampler.sample(Vocabulary.pack(Vocabulary.START_ID, oldWord),
+				  random);
+	while (word != Vocabulary.STOP_ID) {
+	    if (word < 0)
+		word = Vocabulary.UNKNOWN_ID;
+	    sentence.add(word == Vocabulary.UNKNOWN_ID ? "*UNKNOWN*" : s.vocabulary.getWord(word));
+	    int temp = sampler.sample(Vocabulary.pack(oldWord, word), random);
 	    oldWord = word;
 	    word = temp;
 	}
@@ -1,28 +1,88 @@
 package cs224n.langmodel;
 
-import cs224n.util.Counter;
-import cs224n.util.Pair;
-
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
 
 /**
  * A dummy language model -- uses empirical unigram counts, plus a single
  * ficticious count for unknown words.  (That is, we pretend that there is
  * a single unknown word, and that we saw it just once during training.)
+ * Words are counted by their Vocabulary id, in a flat array.  <p/>
+ *
+ * What training and update() change is kept in one immutable State, which
+ * an update replaces with a single (volatile) write, so the model can be
+ * read by other threads while it is updated.
  *
  * @author Dan Klein
  */
-public class UnigramModel implements LanguageModel {
-    
-    private static final String STOP = "</S>";
+public class UnigramModel implements IncrementalLanguageModel {
     
-    public Counter<String> wordCounter;
     //private Pair<Double, Double> regFunc;
     private double discount = .75;
-    private double alpha;
-    private double total;
+    private int threads = 1;
+    private volatile State current;
+    private volatile boolean readOnly;
+
+    /**
+     * The vocabulary and counts of the model, and what is computed from
+     * them.
+     */
+    static class State {
+	final Vocabulary vocabulary;
+	final double[] counts;
+	final double discount;
+	final double alpha;
+	final double total;
+	private WordSampler sampler;    // built on first use
+
+	State(Vocabulary vocabulary, double[] counts, double discount) {
+	    this.vocabulary = vocabulary;
+	    this.counts = counts;
+	    this.discount = discount;
+	    double sum = 0.0;
+	    for (double count : counts) {
+		sum += count;
+	    }
+	    total = (int)sum;
+	
+	    sum = 0.0;
+	    for (double count : counts) {
+		if (count > 0) {
+		    sum += (count - discount) / total;
+		}
+	    }
+	
+	    alpha = 1.0 - sum;
+	}
+
+	double getCount(int id) {
+	    return id < counts.length ? counts[id] : 0.0;
+	}
+
+	double getWordProbability(int id) {
+	    int count = (int)getCount(id);
+	    if(count == 0){
+		return alpha;
+	    }
+
+	    return (double)(count - discount) / total;
+	}
+
+	synchronized WordSampler getSampler() {
+	    if (sampler == null) {
+		sampler = new WordSampler(new WordSampler.Distribution() {
+			public double getWordProbability(long context, int word) {
+			    return State.this.getWordProbability(word);
+			}
+		    }, WordSampler.seenWords(this));
+	    }
+	    return sampler;
+	}
+    }
     
     
     // -----------------------------------------------------------------------
@@ -31,8 +91,23 @@ public class UnigramModel implements LanguageModel {
      * Constructs a new, empty unigram language model.
      */
     public UnigramModel() {
-	wordCounter = new Counter<String>();
-	total = Double.NaN;
+	this(new Vocabulary());
+    }
+    
+    /**
+     * Constructs a new, empty unigram language model which assigns word ids
+     * from the given vocabulary.
+     */
+    public UnigramModel(Vocabulary vocabulary) {
+	current = new State(vocabulary, new double[vocabulary.size()], discount);
+    }
+    
+    /**
+     * Rebuilds a trained model from its vocabulary and counts (see
+     * ModelFile).
+     */
+    UnigramModel(Vocabulary vocabulary, double[] counts) {
+	current = new State(vocabulary, counts, discount);
     }
     
     /**
@@ -56,31 +131,103 @@ public class UnigramModel implements LanguageModel {
      * collection of sentences are compiled.
      */
     public void train(Collection<List<String>> sentences) {
-	wordCounter = new Counter<String>();
-	for (List<String> sentence : sentences) {
-	    List<String> stoppedSentence = new ArrayList<String>(sentence);
-	    stoppedSentence.add(STOP);
-	    for (String word : stoppedSentence) {
-		wordCounter.incrementCount(word, 1.0);
-	    }
-	}
-	total = (int)wordCounter.totalCount();
-	
-	double sum = 0.0;	
-	for(String key : wordCounter.keySet()){
-	    sum += (wordCounter.getCount(key) - discount) / total;
-	}
-	
-	alpha = 1.0 - sum;
+	checkWritable();
+	train(new NgramCounts(current.vocabulary, 1, sentences, threads));
     }
     
-    public double getWordProbability(String word) {
-	int count = (int)wordCounter.getCount(word);
-	if(count == 0){
-	    return alpha;
+    /**
+     * Trains the model from counts gathered by an NgramCounts, whose
+     * vocabulary the model adopts.  The unigram counts are shared, not
+     * copied.
+     */
+    public void train(NgramCounts ngramCounts) {
+	checkWritable();
+	current = new State(ngramCounts.getVocabulary(),
+			    ngramCounts.getUnigramCounts(), discount);
+    }
+
+    /**
+     * Adds the counts of more sentences to a trained model.  The model
+     * keeps answering queries while it is updated, from its old counts
+     * until the update is complete, and from the new counts after.
+     */
+    public synchronized void update(Collection<List<String>> sentences) {
+	checkWritable();
+	update(new NgramCounts(current.vocabulary.copy(), 1, sentences, threads));
+    }
+
+    /**
+     * Adds counts gathered by an NgramCounts to the model's counts.  The
+     * NgramCounts must use a copy of the model's vocabulary (see
+     * Vocabulary.copy), with any new words; the model adopts it.
+     */
+    public synchronized void update(NgramCounts added) {
+	checkWritable();
+	State old = current;
+	double[] addedCounts = added.getUnigramCounts();
+	double[] counts = Arrays.copyOf(old.counts, Math.max(old.counts.length,
+							      addedCounts.length));
+	for (int id = 0; id < addedCounts.length; id++) {
+	    counts[id] += addedCounts[id];
 	}
+	current = new State(added.getVocabulary(), counts, discount);
+    }
+    
+    /**
+     * Makes the model read-only, for good: train() and update() then throw
+     * an IllegalStateException, instead of changing a model which may be
+     * being read.  Scoring and sampling are unaffected.
+     */
+    public void setReadOnly() {
+	readOnly = true;
+    }
+
+    public boolean isReadOnly() {
+	return readOnly;
+    }
+
+    /**
+     * Sets the number of threads used to count a corpus (see
+     * LanguageModel.setTrainingThreads).
+     */
+    public void setTrainingThreads(int threads) {
+	if (threads < 1)
+	    throw new IllegalArgumentException("need at least one thread");
+	this.threads = threads;
+    }
 
-	return (double)(count - discount) / total;
+    private void checkWritable() {
+	if (readOnly)
+	    throw new IllegalStateException("model is read-only");
+    }
+    
+    State getState() {
+	return current;
+    }
+    
+    public Vocabulary getVocabulary() {
+	return current.vocabulary;
+    }
+    
+    double[] getCounts() {
+	State s = current;
+	return Arrays.copyOf(s.counts, Math.min(s.counts.length, s.vocabulary.size()));
+    }
+    
+    /**
+     * Returns the training count of the word with the given id.
+     */
+    public double getCount(int id) {
+	return current.getCount(id);
+    }
+    
+    public double getWordProbability(int id) {
+	return current.getWordProbability(id);
+    }
+    
+    public double getWordProbability(String word) {
+	State s = current;
+	return s.getWordProbability(s.vocabulary.getId(word));
     }
     
     /**
@@ -101,50 +248,89 @@ public class UnigramModel implements LanguageModel {
      * the sentence (including a final stop token).
      */
     public double getSentenceProbability(List<String> sentence) {
-	List<String> stoppedSentence = new ArrayList<String>(sentence);
-	stoppedSentence.add(STOP);
-	double probability = 1.0;
-	for (int index = 0; index < stoppedSentence.size(); index++) {
-	    probability *= getWordProbability(stoppedSentence, index);
+	return Math.exp(getSentenceLogProbability(sentence));
+    }
+    
+    /**
+     * Returns the log probability of the specified sentence: the sum of the
+     * log probabilities of each word in the sentence and of the stop token.
+     */
+    public double getSentenceLogProbability(List<String> sentence) {
+	State s = current;
+	double logProbability = 0.0;
+	for (String word : sentence) {
+	    logProbability += Math.log(s.getWordProbability(s.vocabulary.getId(word)));
 	}
-	return probability;
+	logProbability += Math.log(s.getWordProbability(Vocabulary.STOP_ID));
+	return logProbability;
+    }
+    
+    public double getWordLogProbability(List<String> sentence, int index) {
+	State s = current;
+	int word = index < sentence.size() ? s.vocabulary.getId(sentence.get(index))
+	    : Vocabulary.STOP_ID;
+	return Math.log(s.getWordProbability(word));
+    }
+
+    // -----------------------------------------------------------------------
+    // incremental scoring (see IncrementalLanguageModel): a unigram model
+    // has no context, so there is a single state
+
+    public int getWordId(String word) {
+	return current.vocabulary.getId(word);
+    }
+
+    public String getWord(int id) {
+	return current.vocabulary.getWord(id);
+    }
+
+    public long beginSentence() {
+	return 0L;
+    }
+
+    public double score(long state, int word) {
+	return Math.log(getWordProbability(word));
+    }
+
+    public long nextState(long state, int word) {
+	return state;
+    }
+
+    public int sampleWord(long state, DoubleSupplier random) {
+	return current.getSampler().sample(0L, random);
     }
     
     /**
      * checks if the probability distribution properly sums up to 1
      */
     public double checkModel() {
+	State s = current;
+	double[] counts = s.counts;
 	double sum = 0.0;
 	// since this is a unigram model, 
 	// the event space is everything in the vocabulary (including STOP)
 	// and a UNK token
 	
 	// this loop goes through the vocabulary (which includes STOP)
-	for (String word : wordCounter.keySet()) {
-	    sum += getWordProbability(word);
+	for (int id = 0; id < counts.length; id++) {
+	    if (counts[id] > 0) {
+		sum += s.getWordProbability(id);
+	    }
 	}
 	// remember to add the UNK. In this EmpiricalUnigramLanguageModel
 	// we assume there is only one UNK, so we add...
-	sum += getWordProbability("*UNK*");
+	sum += s.getWordProbability(Vocabulary.UNKNOWN_ID);
 	return sum;
     }
     
     /**
-     * Returns a random word sampled according to the model.  A simple
-     * "roulette-wheel" approach is used: first we generate a sample uniform
-     * on [0, 1]; then we step through the vocabulary eating up probability
-     * mass until we reach our sample.
+     * Returns a random word sampled according to the model, in constant time
+     * once the context has been sampled from before (see WordSampler).
      */
     public String generateWord() {
-	double sample = Math.random();
-	double sum = 0.0;
-	for (String word : wordCounter.keySet()) {
-	    sum += getWordProbability(word);
-	    if (sum > sample) {
-		return word;
-	    }
-	}
-	return "*UNKNOWN*";   // a little probability mass was reserved for unknowns
+	State s = current;
+	int id = s.getSampler().sample(0L, ThreadLocalRandom.current()::nextDouble);
+	return id < 0 ? "*UNKNOWN*" : s.vocabulary.getWord(id);
     }
     
     /**
@@ -154,7 +340,7 @@ public class UnigramModel implements LanguageModel {
     public List<String> generateSentence() {
 	List<String> sentence = new ArrayList<String>();
 	String word = generateWord();
-	while (!word.equals(STOP)) {
+	while (!word.equals(Vocabulary.STOP)) {
 	    sentence.add(word);
 	    word = generateWord();
 	}
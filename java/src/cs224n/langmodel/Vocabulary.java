@@ -0,0 +1,157 @@
+package cs224n.langmodel;
+
+import cs224n.util.Index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Assigns dense integer ids to words, on top of an Index.  The start,
+ * stop and unknown tokens have fixed ids, so that a model can keep its
+ * counts in arrays and hash tables keyed by ints, and turn each sentence
+ * into an int[] once instead of hashing the same Strings over and over.
+ */
+public class Vocabulary {
+
+    public static final String START = "<S>";
+    public static final String STOP = "</S>";
+    public static final String UNKNOWN = "*UNK*";
+
+    public static final int START_ID = 0;
+    public static final int STOP_ID = 1;
+    public static final int UNKNOWN_ID = 2;
+
+    private Index<String> index;
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Constructs a vocabulary holding only the reserved tokens.
+     */
+    public Vocabulary() {
+	index = new Index<String>();
+	index.add(START);
+	index.add(STOP);
+	index.add(UNKNOWN);
+    }
+
+    private Vocabulary(Index<String> index) {
+	this.index = index;
+    }
+
+    /**
+     * Returns a copy of the vocabulary: the same words have the same ids,
+     * and words added to the copy do not change this vocabulary (which may
+     * meanwhile be read by other threads).
+     */
+    public Vocabulary copy() {
+	return new Vocabulary(new Index<String>(index));
+    }
+
+    /**
+     * Packs two word ids into a single long key, the first id in the high
+     * 32 bits.
+     */
+    public static long pack(int first, int second) {
+	return ((long)first << 32) | (second & 0xffffffffL);
+    }
+
+    public static int first(long key) {
+	return (int)(key >>> 32);
+    }
+
+    public static int second(long key) {
+	return (int)key;
+    }
+
+    // -----------------------------------------------------------------------
+
+    /**
+     * Returns the number of ids handed out so far, including the reserved
+     * ones.
+     */
+    public int size() {
+	return index.size();
+    }
+
+    /**
+     * Returns the id of the word, adding it to the vocabulary if it has not
+     * been seen before.
+     */
+    public int addWord(String word) {
+	int id = index.indexOf(word);
+	if (id < 0) {
+	    index.add(word);
+	    id = index.size() - 1;
+	}
+	return id;
+    }
+
+    /**
+     * Returns the id of the word, or UNKNOWN_ID if it is not in the
+     * vocabulary.  Never changes the vocabulary.
+     */
+    public int getId(String word) {
+	int id = index.indexOf(word);
+	return id < 0 ? UNKNOWN_ID : id;
+    }
+
+    /**
+     * Returns the id of the word, or -1 if it is not in the vocabulary.
+     * Never changes the vocabulary, so any number of threads may call it
+     * while no thread adds words.
+     */
+    public int findId(String word) {
+	return index.indexOf(word);
+    }
+
+    public String getWord(int id) {
+	return index.get(id);
+    }
+
+    /**
+     * Turns a sentence into ids, adding any new words.  No start or stop
+     * token is added.
+     */
+    public int[] addSentence(List<String> sentence) {
+	int[] ids = new int[sentence.size()];
+	for (int i = 0; i < ids.length; i++) {
+	    ids[i] = addWord(sentence.get(i));
+	}
+	return ids;
+    }
+
+    /**
+     * Turns a sentence into ids, mapping words not in the vocabulary to
+     * UNKNOWN_ID.  No start or stop token is added.
+     */
+    public int[] encode(List<String> sentence) {
+	int[] ids = new int[sentence.size()];
+	for (int i = 0; i < ids.length; i++) {
+	    ids[i] = getId(sentence.get(i));
+	}
+	return ids;
+    }
+
+    /**
+     * Reads a collection of sentences once, assigning ids to new words as
+     * they are seen, and returns the id-encoded corpus.
+     */
+    public List<int[]> addSentences(Collection<List<String>> sentences) {
+	List<int[]> encoded = new ArrayList<int[]>();
+	for (List<String> sentence : sentences) {
+	    encoded.add(addSentence(sentence));
+	}
+	return encoded;
+    }
+
+    public List<String> decode(int[] ids) {
+	List<String> sentence = new ArrayList<String>(ids.length);
+	for (int id : ids) {
+	    sentence.add(getWord(id));
+	}
+	return sentence;
+    }
+
+}
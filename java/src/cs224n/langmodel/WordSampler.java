@@ -0,0 +1,213 @@
+package cs224n.langmodel;
+
+import cs224n.util.AliasTable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Samples words from one order of a backoff model's distribution over the
+ * next word given a context, in constant (expected) time.  <p/>
+ *
+ * The event space is every word seen in training plus the mass the model
+ * reserves for unknown words (sampled as -1, as the roulette wheel this
+ * replaces did).  A context seen in training gets a Walker alias table over
+ * its successors and one more outcome holding the mass it backs off with.
+ * Backing off samples the lower order and rejects the context's own
+ * successors, which gives exactly the backed-off mass alpha * P(lower) over
+ * the other words.  If the successors hold so much of the lower order's
+ * mass that fewer than one lower-order sample in eight would be accepted,
+ * the context instead gets a table over the whole event space (which takes
+ * a walk over the vocabulary to build, so it is kept for rare cases).  A context
+ * not seen in training is sampled from the lower order directly.  A
+ * distribution with no counts behind it (an ArpaModel's) gets a table over
+ * the whole event space for every context.  <p/>
+ *
+ * Tables are built on the first sample from a context and kept in an LRU
+ * cache holding at most MAX_CELLS table entries in all, so the memory is
+ * bounded whatever the vocabulary size.  Sampling is thread-safe.
+ */
+class WordSampler {
+
+    private static final int MAX_CELLS = 1 << 21;
+    private static final double MIN_ACCEPTANCE = 1.0 / 8;
+
+    /**
+     * A model's next-word distribution, keyed by its (packed) context.
+     */
+    interface Distribution {
+	double getWordProbability(long context, int word);
+    }
+
+    /**
+     * A context's table; outcome i < words.length is words[i], and any other
+     * outcome is the unknown word (if full) or the backoff.
+     */
+    private static class Entry {
+	AliasTable table;
+	int[] words;
+	boolean full;
+    }
+
+    private final Distribution distribution;
+    private final int[] words;
+    private final NgramTable table;
+    private final double discount;
+    private final WordSampler lower;
+    private final boolean contextual;
+    private final LinkedHashMap<Long,Entry> entries =
+	new LinkedHashMap<Long,Entry>(16, 0.75f, true);
+    private int cells;
+
+    /**
+     * Samples a unigram distribution (which has no context) over the given
+     * word ids, the words seen in training, and the unknown word.
+     */
+    WordSampler(Distribution distribution, int[] words) {
+	this(distribution, words, null, 0.0, null, false);
+    }
+
+    /**
+     * Samples a distribution given a context, over the given word ids and
+     * the unknown word, with no counts to back off through: each context
+     * gets a table over the whole event space.
+     */
+    WordSampler(Distribution distribution, int[] words, boolean contextual) {
+	this(distribution, words, null, 0.0, null, contextual);
+    }
+
+    /**
+     * Samples an absolutely discounted distribution whose counts are in the
+     * table, backing off to the lower order, whose context is the last word
+     * of this order's context.
+     */
+    WordSampler(Distribution distribution, int[] words, NgramTable table,
+		double discount, WordSampler lower) {
+	this(distribution, words, table, discount, lower, true);
+    }
+
+    private WordSampler(Distribution distribution, int[] words, NgramTable table,
+			double discount, WordSampler lower, boolean contextual) {
+	this.distribution = distribution;
+	this.words = words;
+	this.table = table;
+	this.discount = discount;
+	this.lower = lower;
+	this.contextual = contextual;
+    }
+
+    /**
+     * The ids of the words the unigram model has seen in training, in id
+     * order.
+     */
+    static int[] seenWords(UnigramModel.State uniModel) {
+	int size = uniModel.vocabulary.size();
+	int n = 0;
+	for (int id = 0; id < size; id++) {
+	    if (uniModel.getCount(id) > 0) n++;
+	}
+	int[] words = new int[n];
+	n = 0;
+	for (int id = 0; id < size; id++) {
+	    if (uniModel.getCount(id) > 0) words[n++] = id;
+	}
+	return words;
+    }
+
+    /**
+     * Returns a word id sampled from the distribution given the context, or
+     * -1 for an unknown word, drawing uniform samples on [0, 1) from random.
+     */
+    int sample(long context, DoubleSupplier random) {
+	int c = -1;
+	if (!contextual) {
+	    context = 0L;                     // a unigram has no context
+	} else if (table != null) {
+	    c = table.findContext(context);
+	    if (c < 0)                        // unseen context
+		return lower.sample(Vocabulary.second(context), random);
+	}
+	Entry entry = getEntry(context, c);
+	int outcome = entry.table.sample(random.getAsDouble());
+	if (outcome < entry.words.length)
+	    return entry.words[outcome];
+	if (entry.full)
+	    return -1;
+	while (true) {                        // back off
+	    int word = lower.sample(Vocabulary.second(context), random);
+	    if (word < 0 || table.find(c, word) < 0)
+		return word;
+	}
+    }
+
+    private Entry getEntry(long context, int c) {
+	Entry entry;
+	synchronized (entries) {
+	    entry = entries.get(context);
+	}
+	if (entry != null)
+	    return entry;
+	entry = c < 0 ? null : buildBackoff(context, c);
+	if (entry == null)
+	    entry = buildFull(context);
+	synchronized (entries) {
+	    Entry replaced = entries.put(context, entry);
+	    if (replaced != null)
+		cells -= replaced.table.size();
+	    cells += entry.table.size();
+	    Iterator<Entry> eldest = entries.values().iterator();
+	    while (cells > MAX_CELLS && entries.size() > 1) {
+		cells -= eldest.next().table.size();
+		eldest.remove();
+	    }
+	}
+	return entry;
+    }
+
+    /**
+     * A table over the successors of context c and the backoff, or null if
+     * the backoff would reject too many samples.
+     */
+    private Entry buildBackoff(long context, int c) {
+	int start = table.getStart(c), end = table.getEnd(c);
+	double total = table.getTotal(c);
+	long lowerContext = Vocabulary.second(context);
+	Entry entry = new Entry();
+	entry.words = new int[end - start];
+	double[] weights = new double[end - start + 1];
+	double sum = 0.0, acceptance = 1.0;
+	for (int i = start; i < end; i++) {
+	    entry.words[i - start] = table.getWord(i);
+	    weights[i - start] = (table.getCount(i) - discount) / total;
+	    sum += weights[i - start];
+	    acceptance -= lower.distribution.getWordProbability(lowerContext,
+								  table.getWord(i));
+	}
+	if (acceptance < MIN_ACCEPTANCE)
+	    return null;
+	weights[end - start] = Math.max(0.0, 1.0 - sum);
+	entry.table = new AliasTable(weights);
+	return entry;
+    }
+
+    /**
+     * A table over every word seen in training and the unknown word.
+     */
+    private Entry buildFull(long context) {
+	Entry entry = new Entry();
+	entry.words = words;
+	entry.full = true;
+	double[] weights = new double[words.length + 1];
+	double sum = 0.0;
+	for (int i = 0; i < words.length; i++) {
+	    weights[i] = distribution.getWordProbability(context, words[i]);
+	    sum += weights[i];
+	}
+	weights[words.length] = Math.max(0.0, 1.0 - sum);
+	entry.table = new AliasTable(weights);
+	return entry;
+    }
+
+}
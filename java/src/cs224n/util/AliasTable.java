@@ -0,0 +1,89 @@
+package cs224n.util;
+
+/**
+ * Samples from a fixed discrete distribution in constant time, by Walker's
+ * alias method (built with Vose's algorithm, in time linear in the number
+ * of outcomes).  Each outcome owns one column; a sample picks a column
+ * uniformly, then either keeps it or takes the column's alias, so no
+ * cumulative sum is ever walked.  <p/>
+ *
+ * Tables are immutable once built, and may be shared between threads.
+ */
+public class AliasTable {
+
+  private double[] probability;
+  private int[] alias;
+
+  /**
+   * Builds a table over outcomes 0 to weights.length - 1, outcome i having
+   * probability weights[i] / (sum of weights).  The weights must be
+   * non-negative, and not all zero.
+   */
+  public AliasTable(double[] weights) {
+    int n = weights.length;
+    double sum = 0.0;
+    for (double weight : weights) {
+      if (weight < 0.0 || Double.isNaN(weight))
+        throw new IllegalArgumentException("bad weight " + weight);
+      sum += weight;
+    }
+    if (!(sum > 0.0))
+      throw new IllegalArgumentException("weights sum to " + sum);
+
+    probability = new double[n];
+    alias = new int[n];
+    // columns filled less than full (small) and more than full (large)
+    int[] small = new int[n];
+    int[] large = new int[n];
+    int numSmall = 0, numLarge = 0;
+    double[] scaled = new double[n];
+    for (int i = 0; i < n; i++) {
+      scaled[i] = weights[i] * n / sum;
+      if (scaled[i] < 1.0)
+        small[numSmall++] = i;
+      else
+        large[numLarge++] = i;
+    }
+    // top up each small column from a large one
+    while (numSmall > 0 && numLarge > 0) {
+      int s = small[--numSmall];
+      int l = large[--numLarge];
+      probability[s] = scaled[s];
+      alias[s] = l;
+      scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+      if (scaled[l] < 1.0)
+        small[numSmall++] = l;
+      else
+        large[numLarge++] = l;
+    }
+    // what is left is full, up to rounding
+    while (numLarge > 0) {
+      int l = large[--numLarge];
+      probability[l] = 1.0;
+      alias[l] = l;
+    }
+    while (numSmall > 0) {
+      int s = small[--numSmall];
+      probability[s] = 1.0;
+      alias[s] = s;
+    }
+  }
+
+  /**
+   * Returns an outcome, given a sample uniform on [0, 1).
+   */
+  public int sample(double uniform) {
+    double x = uniform * probability.length;
+    int column = (int) x;
+    if (column >= probability.length)        // uniform was (nearly) 1
+      column = probability.length - 1;
+    return x - column < probability[column] ? column : alias[column];
+  }
+
+  /**
+   * The number of outcomes.
+   */
+  public int size() {
+    return probability.length;
+  }
+}
@@ -0,0 +1,190 @@
+package cs224n.util;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A Counter which many threads may increment at once, without a global
+ * lock.  Each key's count is a DoubleAdder in a ConcurrentHashMap: looking
+ * up a key already present takes no lock, and an increment is a CAS on one
+ * of the adder's cells, which spreads over more cells as more threads
+ * contend for it, so even a key every thread hits (a context like "<S>"
+ * or "the") does not serialize the threads.  Only adding a new key locks,
+ * and only one bin of the map.  <p/>
+ *
+ * Counts read while other threads increment are a moment's sum, not a
+ * snapshot; read them (or call toCounter()) once the producers are done.
+ * setCount() is not atomic with respect to concurrent increments of the
+ * same key.  Null keys are not supported.  <p/>
+ *
+ * The models in cs224n.langmodel do not count through this class:
+ * NgramCounts has each thread count into structures of its own, which
+ * needs no shared store.  It is for callers whose producers do share one.
+ */
+public class ConcurrentCounter<E> {
+
+  private final ConcurrentHashMap<E, DoubleAdder> counts;
+
+  public ConcurrentCounter() {
+    counts = new ConcurrentHashMap<E, DoubleAdder>();
+  }
+
+  /**
+   * Builds a counter presized to hold the given number of keys.
+   */
+  public ConcurrentCounter(int expectedSize) {
+    counts = new ConcurrentHashMap<E, DoubleAdder>(expectedSize);
+  }
+
+  // -----------------------------------------------------------------------
+
+  private DoubleAdder ensureAdder(E key) {
+    DoubleAdder adder = counts.get(key);     // no lock if present
+    if (adder == null)
+      adder = counts.computeIfAbsent(key, k -> new DoubleAdder());
+    return adder;
+  }
+
+  /**
+   * Increment a key's count by the given amount.
+   */
+  public void incrementCount(E key, double increment) {
+    ensureAdder(key).add(increment);
+  }
+
+  /**
+   * Increment each element in a given collection by a given amount.
+   */
+  public void incrementAll(Collection<? extends E> collection, double count) {
+    for (E key : collection) {
+      incrementCount(key, count);
+    }
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(E key, double count) {
+    DoubleAdder adder = ensureAdder(key);
+    adder.reset();
+    adder.add(count);
+  }
+
+  /**
+   * Get the count of the element, or zero if the element is not in the
+   * counter.
+   */
+  public double getCount(E key) {
+    DoubleAdder adder = counts.get(key);
+    return adder == null ? 0.0 : adder.sum();
+  }
+
+  public boolean containsKey(E key) {
+    return counts.containsKey(key);
+  }
+
+  /**
+   * The elements in the counter, as a live, unmodifiable view.
+   */
+  public Set<E> keySet() {
+    return Collections.unmodifiableSet(counts.keySet());
+  }
+
+  /**
+   * The number of entries in the counter.
+   */
+  public int size() {
+    return counts.size();
+  }
+
+  public boolean isEmpty() {
+    return counts.isEmpty();
+  }
+
+  /**
+   * Finds the total of all counts in the counter.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (DoubleAdder adder : counts.values()) {
+      total += adder.sum();
+    }
+    return total;
+  }
+
+  /**
+   * Copies the counts into a plain Counter.
+   */
+  public Counter<E> toCounter() {
+    Counter<E> counter = new Counter<E>(counts.size());
+    for (Map.Entry<E, DoubleAdder> entry : counts.entrySet()) {
+      counter.setCount(entry.getKey(), entry.getValue().sum());
+    }
+    return counter;
+  }
+
+  public String toString() {
+    return toCounter().toString();
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * A contention benchmark: the given number of threads (default 4) each
+   * count the words of the same 10-word sentence, starting with "<S>" and
+   * "the", a million times, into one ConcurrentCounter, and then into one
+   * Counter behind a lock.
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    final int rounds = 1000000;
+    final String[] sentence = {"<S>", "the", "cat", "sat", "on", "the",
+                               "mat", "and", "the", "</S>"};
+    final ConcurrentCounter<String> concurrent = new ConcurrentCounter<String>();
+    long time = runThreads(threads, new Runnable() {
+        public void run() {
+          for (int i = 0; i < rounds; i++) {
+            for (String word : sentence) {
+              concurrent.incrementCount(word, 1.0);
+            }
+          }
+        }
+      });
+    System.out.println("ConcurrentCounter: " + time / 1000000 + " ms, " +
+                       "count(the) = " + concurrent.getCount("the"));
+    final Counter<String> locked = new Counter<String>();
+    time = runThreads(threads, new Runnable() {
+        public void run() {
+          for (int i = 0; i < rounds; i++) {
+            for (String word : sentence) {
+              synchronized (locked) {
+                locked.incrementCount(word, 1.0);
+              }
+            }
+          }
+        }
+      });
+    System.out.println("locked Counter:    " + time / 1000000 + " ms, " +
+                       "count(the) = " + locked.getCount("the"));
+    System.out.println("expected count(the) = " + 3.0 * threads * rounds);
+  }
+
+  private static long runThreads(int threads, Runnable task)
+    throws InterruptedException {
+    Thread[] workers = new Thread[threads];
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      workers[t] = new Thread(task);
+      workers[t].start();
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return System.nanoTime() - start;
+  }
+
+}
@@ -0,0 +1,130 @@
+package cs224n.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A CounterMap which many threads may increment at once, so that several
+ * producers (tokenizer threads, say) can feed one shared count store
+ * instead of each filling a shard to be merged afterwards.  The keys map
+ * to ConcurrentCounters, which count without a global lock (see
+ * ConcurrentCounter); finding the sub-counter of a key already present
+ * takes no lock either.  <p/>
+ *
+ * As with CounterMap, reading never changes the map.  Read the counts, or
+ * call toCounterMap(), once the producers are done.  Null keys are not
+ * supported.
+ */
+public class ConcurrentCounterMap<K, V> {
+
+  private final ConcurrentHashMap<K, ConcurrentCounter<V>> counterMap =
+    new ConcurrentHashMap<K, ConcurrentCounter<V>>();
+
+  // -----------------------------------------------------------------------
+
+  private ConcurrentCounter<V> ensureCounter(K key) {
+    ConcurrentCounter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null)
+      valueCounter = counterMap.computeIfAbsent(key, k -> new ConcurrentCounter<V>());
+    return valueCounter;
+  }
+
+  /**
+   * Returns the keys that have been inserted into this map, as a live,
+   * unmodifiable view.
+   */
+  public Set<K> keySet() {
+    return Collections.unmodifiableSet(counterMap.keySet());
+  }
+
+  /**
+   * Sets the count for a particular (key, value) pair.
+   */
+  public void setCount(K key, V value, double count) {
+    ensureCounter(key).setCount(value, count);
+  }
+
+  /**
+   * Increments the count for a particular (key, value) pair.
+   */
+  public void incrementCount(K key, V value, double count) {
+    ensureCounter(key).incrementCount(value, count);
+  }
+
+  /**
+   * Gets the count of the given (key, value) entry, or zero if that
+   * entry is not present.  Does not create any objects.
+   */
+  public double getCount(K key, V value) {
+    ConcurrentCounter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null)
+      return 0.0;
+    return valueCounter.getCount(value);
+  }
+
+  /**
+   * Returns a copy of the sub-counter for the given key, or a shared,
+   * read-only empty counter (see Counter.emptyCounter) if there is none.
+   */
+  public Counter<V> getCounter(K key) {
+    ConcurrentCounter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null)
+      return Counter.emptyCounter();
+    return valueCounter.toCounter();
+  }
+
+  /**
+   * Returns the total of all counts in sub-counters.
+   */
+  public double totalCount() {
+    double total = 0.0;
+    for (ConcurrentCounter<V> counter : counterMap.values()) {
+      total += counter.totalCount();
+    }
+    return total;
+  }
+
+  /**
+   * Returns the total number of (key, value) entries in the map.
+   */
+  public int totalSize() {
+    int total = 0;
+    for (ConcurrentCounter<V> counter : counterMap.values()) {
+      total += counter.size();
+    }
+    return total;
+  }
+
+  /**
+   * The number of keys in this map.
+   */
+  public int size() {
+    return counterMap.size();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Copies the counts into a plain CounterMap.
+   */
+  public CounterMap<K, V> toCounterMap() {
+    CounterMap<K, V> copy = new CounterMap<K, V>();
+    for (Map.Entry<K, ConcurrentCounter<V>> entry : counterMap.entrySet()) {
+      K key = entry.getKey();
+      ConcurrentCounter<V> counter = entry.getValue();
+      for (V value : counter.keySet()) {
+        copy.setCount(key, value, counter.getCount(value));
+      }
+    }
+    return copy;
+  }
+
+  public String toString() {
+    return toCounterMap().toString();
+  }
+
+}
@@ -1,36 +1,215 @@
 package cs224n.util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Map;
-import java.util.Set;
+import java.util.AbstractSet;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * A map from objects to doubles.  Includes convenience methods for getting,
  * setting, and incrementing element counts.  Objects not in the counter will
- * return a count of zero.  The counter is backed by a HashMap (unless specified
- * otherwise with the MapFactory constructor).
+ * return a count of zero.  <p/>
+ *
+ * The counter is backed by an open-addressing hash table (linear probing)
+ * whose keys live in an <code>Object[]</code> and whose counts live in a
+ * parallel <code>double[]</code>, so no boxed <code>Double</code> or map
+ * entry objects are created per element.  Keys are compared with
+ * <code>equals()</code>, or with <code>==</code> if the counter was built
+ * with an <code>IdentityHashMapFactory</code> (see IdentityCounter).  As
+ * with a HashMap, the iteration order of keySet() is unspecified.  <p/>
+ *
+ * Once setReadOnly() has been called, every method which would change the
+ * counter throws an UnsupportedOperationException instead; a read-only
+ * counter may be read by any number of threads.
  *
  * @author Dan Klein
  */
 public class Counter <E> implements Serializable {
-  static final long serialVersionUID = 1L;
-  Map<E, Double> entries;
+  static final long serialVersionUID = 2L;
+
+  private static final int DEFAULT_CAPACITY = 16;
+  private static final Object NULL_KEY = new Object();
+  private static final Counter<Object> EMPTY = new Counter<Object>(0);
+  static {
+    EMPTY.setReadOnly();
+  }
+
+  private boolean identity;
+  private boolean readOnly;
+  private transient Object[] keys;
+  private transient double[] counts;
+  private transient int size;
+  private transient int modCount;
+
+  // -----------------------------------------------------------------------
+
+  private int hash(Object key) {
+    int h = identity ? System.identityHashCode(key) : key.hashCode();
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private boolean matches(Object slotKey, Object key) {
+    return slotKey == key || (!identity && slotKey.equals(key));
+  }
+
+  /**
+   * Returns the slot holding the key, or -(insertion slot + 1) if the key is
+   * not in the table.
+   */
+  private int findSlot(Object key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (true) {
+      Object slotKey = keys[slot];
+      if (slotKey == null)
+        return -slot - 1;
+      if (matches(slotKey, key))
+        return slot;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private static Object maskNull(Object key) {
+    return key == null ? NULL_KEY : key;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <E> E unmaskNull(Object key) {
+    return key == NULL_KEY ? null : (E) key;
+  }
+
+  /**
+   * Returns the slot for the key, inserting it with count zero if needed.
+   */
+  private int ensureSlot(Object key) {
+    if (readOnly)
+      throw new UnsupportedOperationException("counter is read-only");
+    int slot = findSlot(key);
+    if (slot >= 0)
+      return slot;
+    // keep the load factor at or below 2/3
+    if (3 * (size + 1) > 2 * keys.length) {
+      rehash(keys.length * 2);
+      slot = findSlot(key);
+    }
+    slot = -slot - 1;
+    keys[slot] = key;
+    counts[slot] = 0.0;
+    size++;
+    modCount++;
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    Object[] oldKeys = keys;
+    double[] oldCounts = counts;
+    keys = new Object[newCapacity];
+    counts = new double[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      Object key = oldKeys[i];
+      if (key == null) continue;
+      int slot = hash(key) & mask;
+      while (keys[slot] != null)
+        slot = (slot + 1) & mask;
+      keys[slot] = key;
+      counts[slot] = oldCounts[i];
+    }
+    modCount++;
+  }
+
+  private static int tableSizeFor(int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while (2 * capacity < 3 * expectedSize)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * Returns a shared, read-only, empty counter.
+   */
+  @SuppressWarnings("unchecked")
+  public static <E> Counter<E> emptyCounter() {
+    return (Counter<E>) EMPTY;
+  }
 
   /**
-   * The elements in the counter.
+   * Makes the counter read-only, for good.
+   */
+  public void setReadOnly() {
+    readOnly = true;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * The elements in the counter.  The set is a live view; it does not
+   * support removal.
    *
    * @return set of keys
    */
   public Set<E> keySet() {
-    return entries.keySet();
+    return new AbstractSet<E>() {
+      public Iterator<E> iterator() {
+        return new KeyIterator();
+      }
+
+      public int size() {
+        return size;
+      }
+
+      @SuppressWarnings("unchecked")
+      public boolean contains(Object o) {
+        return containsKey((E) o);
+      }
+    };
+  }
+
+  private class KeyIterator implements Iterator<E> {
+    int next = advance(0);
+    int expectedModCount = modCount;
+
+    private int advance(int slot) {
+      while (slot < keys.length && keys[slot] == null)
+        slot++;
+      return slot;
+    }
+
+    public boolean hasNext() {
+      return next < keys.length;
+    }
+
+    public E next() {
+      if (modCount != expectedModCount)
+        throw new ConcurrentModificationException();
+      if (next >= keys.length)
+        throw new NoSuchElementException();
+      E key = Counter.<E>unmaskNull(keys[next]);
+      next = advance(next + 1);
+      return key;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 
   /**
    * The number of entries in the counter (not the total count -- use totalCount() instead).
    */
   public int size() {
-    return entries.size();
+    return size;
   }
 
   /**
@@ -50,7 +229,7 @@ public class Counter <E> implements Serializable {
    * @return whether the counter contains the key
    */
   public boolean containsKey(E key) {
-    return entries.containsKey(key);
+    return findSlot(maskNull(key)) >= 0;
   }
 
   /**
@@ -60,10 +239,10 @@ public class Counter <E> implements Serializable {
    * @param key
    */
   public double getCount(E key) {
-    Double value = entries.get(key);
-    if (value == null)
+    int slot = findSlot(maskNull(key));
+    if (slot < 0)
       return 0;
-    return value;
+    return counts[slot];
   }
 
   /**
@@ -73,17 +252,20 @@ public class Counter <E> implements Serializable {
    * @param count
    */
   public void setCount(E key, double count) {
-    entries.put(key, count);
+    int slot = ensureSlot(maskNull(key));
+    counts[slot] = count;
   }
 
   /**
-   * Increment a key's count by the given amount.
+   * Increment a key's count by the given amount.  This probes the table
+   * once, for both the lookup and the update.
    *
    * @param key
    * @param increment
    */
   public void incrementCount(E key, double increment) {
-    setCount(key, getCount(key) + increment);
+    int slot = ensureSlot(maskNull(key));
+    counts[slot] += increment;
   }
 
   /**
@@ -96,9 +278,10 @@ public class Counter <E> implements Serializable {
   }
 
   public <T extends E> void incrementAll(Counter<T> counter) {
-    for (T key : counter.keySet()) {
-      double count = counter.getCount(key);
-      incrementCount(key, count);
+    for (int i = 0; i < counter.keys.length; i++) {
+      if (counter.keys[i] == null) continue;
+      int slot = ensureSlot(counter.keys[i]);
+      counts[slot] += counter.counts[i];
     }
   }
 
@@ -110,8 +293,9 @@ public class Counter <E> implements Serializable {
    */
   public double totalCount() {
     double total = 0.0;
-    for (Map.Entry<E, Double> entry : entries.entrySet()) {
-      total += entry.getValue();
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null)
+        total += counts[i];
     }
     return total;
   }
@@ -123,14 +307,17 @@ public class Counter <E> implements Serializable {
    */
   public E argMax() {
     double maxCount = Double.NEGATIVE_INFINITY;
-    E maxKey = null;
-    for (Map.Entry<E, Double> entry : entries.entrySet()) {
-      if (entry.getValue() > maxCount || maxKey == null) {
-        maxKey = entry.getKey();
-        maxCount = entry.getValue();
+    int maxSlot = -1;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == null) continue;
+      if (counts[i] > maxCount || maxSlot < 0) {
+        maxSlot = i;
+        maxCount = counts[i];
       }
     }
-    return maxKey;
+    if (maxSlot < 0)
+      return null;
+    return Counter.<E>unmaskNull(keys[maxSlot]);
   }
 
   /**
@@ -159,19 +346,63 @@ public class Counter <E> implements Serializable {
    * whose priorities are those elements' counts in the counter.
    */
   public PriorityQueue<E> asPriorityQueue() {
-    PriorityQueue<E> pq = new PriorityQueue<E>(entries.size());
-    for (Map.Entry<E, Double> entry : entries.entrySet()) {
-      pq.add(entry.getKey(), entry.getValue());
+    PriorityQueue<E> pq = new PriorityQueue<E>(size);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != null)
+        pq.add(Counter.<E>unmaskNull(keys[i]), counts[i]);
     }
     return pq;
   }
 
+  // -----------------------------------------------------------------------
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size);
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] == null) continue;
+      out.writeObject(unmaskNull(keys[i]));
+      out.writeDouble(counts[i]);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    boolean wasReadOnly = readOnly;
+    readOnly = false;
+    int n = in.readInt();
+    keys = new Object[tableSizeFor(n)];
+    counts = new double[keys.length];
+    for (int i = 0; i < n; i++) {
+      E key = (E) in.readObject();
+      setCount(key, in.readDouble());
+    }
+    readOnly = wasReadOnly;
+  }
+
   public Counter() {
-    this(new MapFactory.HashMapFactory<E, Double>());
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Builds a counter presized to hold the given number of keys without
+   * rehashing.
+   */
+  public Counter(int expectedSize) {
+    keys = new Object[tableSizeFor(expectedSize)];
+    counts = new double[keys.length];
   }
 
+  /**
+   * Builds a counter with the key semantics of the given map factory: an
+   * IdentityHashMapFactory gives identity (==) semantics, any other factory
+   * gives equals() semantics.
+   */
   public Counter(MapFactory<E, Double> mf) {
-    entries = mf.buildMap();
+    this();
+    identity = mf instanceof MapFactory.IdentityHashMapFactory;
   }
 
   public static void main(String[] args) {
@@ -9,7 +9,12 @@ import java.util.Set;
  * usage: keys might be words with values being POS tags, and the
  * count being the number of occurences of that word/tag pair.  The
  * sub-counters returned by getCounter(word) would be count
- * distributions over tags for that word.
+ * distributions over tags for that word.  <p/>
+ *
+ * Reading never changes the map: looking up a key which is not in it
+ * creates nothing.  Once setReadOnly() has been called, the map and its
+ * sub-counters reject any change (with an UnsupportedOperationException),
+ * and may be read by any number of threads.
  *
  * @author Dan Klein
  */
@@ -17,6 +22,7 @@ public class CounterMap<K, V> {
 
   private MapFactory<V, Double> mf;
   private Map<K, Counter<V>> counterMap;
+  private boolean readOnly;
 
   // -----------------------------------------------------------------------
 
@@ -34,6 +40,8 @@ public class CounterMap<K, V> {
   // -----------------------------------------------------------------------
 
   protected Counter<V> ensureCounter(K key) {
+    if (readOnly)
+      throw new UnsupportedOperationException("counter map is read-only");
     Counter<V> valueCounter = counterMap.get(key);
     if (valueCounter == null) {
       valueCounter = new Counter<V>(mf);
@@ -78,14 +86,30 @@ public class CounterMap<K, V> {
 
   /**
    * Gets the sub-counter for the given key.  If there is none, a
-   * counter is created for that key, and installed in the CounterMap.
-   * You can, for example, add to the returned empty counter directly
-   * (though you shouldn't).  This is so whether the key is present or
-   * not, modifying the returned counter has the same effect (but
-   * don't do it).
+   * shared, read-only empty counter is returned (see
+   * Counter.emptyCounter), and nothing is added to the CounterMap.
+   * Change counts through the CounterMap, not through the returned
+   * counter.
    */
   public Counter<V> getCounter(K key) {
-    return ensureCounter(key);
+    Counter<V> valueCounter = counterMap.get(key);
+    if (valueCounter == null)
+      return Counter.emptyCounter();
+    return valueCounter;
+  }
+
+  /**
+   * Makes the CounterMap and all its sub-counters read-only, for good.
+   */
+  public void setReadOnly() {
+    readOnly = true;
+    for (Counter<V> counter : counterMap.values()) {
+      counter.setReadOnly();
+    }
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
   }
 
   /**
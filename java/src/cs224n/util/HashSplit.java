@@ -0,0 +1,135 @@
+package cs224n.util;
+
+import java.util.*;
+
+/**
+ * Splits a collection into folds, putting each item in a fold by a hash of
+ * its position, so that the split is the same on every run, and is known
+ * as soon as an item is reached: no pass counts the items first, and none
+ * are copied.  This suits a disk-backed collection such as
+ * <code>Sentences</code>, whose <code>size()</code> is a full read of the
+ * file.  <p/>
+ *
+ * A train/held-out split with one item in five held out is
+ * <pre>
+ *   HashSplit&lt;List&lt;String&gt;&gt; split = new HashSplit&lt;List&lt;String&gt;&gt;(sentences, 5);
+ *   split.getFold(0)           // the held-out sentences
+ *   split.getOtherFolds(0)     // the training sentences
+ * </pre>
+ * and k-fold cross-validation trains on getOtherFolds(k) and tests on
+ * getFold(k), for each k.  The views are <code>Collection</code>s which
+ * filter the underlying collection as it is iterated; their
+ * <code>size()</code> iterates too.  A caller making a single pass over
+ * the items can ask foldOf(index) for each instead.  Fold sizes are
+ * close to even, but not exactly even.
+ */
+public class HashSplit<E> {
+
+  private Collection<E> items;
+  private int folds;
+  private long seed;
+
+  /**
+   * Splits the items into the given number of folds.
+   */
+  public HashSplit(Collection<E> items, int folds) {
+    this(items, folds, 0L);
+  }
+
+  /**
+   * Splits the items into the given number of folds; different seeds give
+   * independent splits.
+   */
+  public HashSplit(Collection<E> items, int folds, long seed) {
+    if (folds < 1)
+      throw new IllegalArgumentException("folds: " + folds);
+    this.items = items;
+    this.folds = folds;
+    this.seed = seed;
+  }
+
+  public int getFoldCount() {
+    return folds;
+  }
+
+  /**
+   * Returns the fold of the item at the given position (counting from 0)
+   * of the underlying collection's iteration order.
+   */
+  public int foldOf(long index) {
+    // the SplitMix64 finalizer, which spreads consecutive indices evenly
+    long z = index + seed * 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    return (int) ((z >>> 1) % folds);
+  }
+
+  /**
+   * A view of the items in the given fold.
+   */
+  public Collection<E> getFold(int fold) {
+    return new View(fold, true);
+  }
+
+  /**
+   * A view of the items in every fold but the given one.
+   */
+  public Collection<E> getOtherFolds(int fold) {
+    return new View(fold, false);
+  }
+
+  private class View extends AbstractCollection<E> {
+    int fold;
+    boolean in;
+
+    View(int fold, boolean in) {
+      if (fold < 0 || fold >= folds)
+        throw new IllegalArgumentException("fold: " + fold);
+      this.fold = fold;
+      this.in = in;
+    }
+
+    public Iterator<E> iterator() {
+      return new Iterator<E>() {
+        Iterator<E> source = items.iterator();
+        long index = 0;
+        E next;
+        boolean ready;
+
+        public boolean hasNext() {
+          while (!ready && source.hasNext()) {
+            E item = source.next();
+            if ((foldOf(index++) == fold) == in) {
+              next = item;
+              ready = true;
+            }
+          }
+          return ready;
+        }
+
+        public E next() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          ready = false;
+          E item = next;
+          next = null;
+          return item;
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public int size() {
+      int size = 0;
+      for (Iterator<E> i = iterator(); i.hasNext(); i.next()) {
+        size++;
+      }
+      return size;
+    }
+  }
+
+}
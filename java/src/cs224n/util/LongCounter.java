@@ -0,0 +1,229 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from primitive longs to doubles, with the same counting interface as
+ * Counter.  Keys not in the counter return a count of zero.  The counter is
+ * an open-addressing hash table (linear probing) over a <code>long[]</code>
+ * of keys and a parallel <code>double[]</code> of counts, so it is a compact
+ * store for keys which pack several small ints (for example, word ids) into
+ * a single long.
+ */
+public class LongCounter implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private static final int DEFAULT_CAPACITY = 16;
+
+  // marks an empty slot; the key itself is stored out of line
+  private static final long FREE = Long.MIN_VALUE;
+
+  private long[] keys;
+  private double[] counts;
+  private int size;
+  private boolean hasFreeKey;
+  private double freeKeyCount;
+
+  // -----------------------------------------------------------------------
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  /**
+   * Returns the slot holding the key, or -(insertion slot + 1) if the key is
+   * not in the table.  Must not be called with FREE.
+   */
+  private int findSlot(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (true) {
+      long slotKey = keys[slot];
+      if (slotKey == key)
+        return slot;
+      if (slotKey == FREE)
+        return -slot - 1;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  private int ensureSlot(long key) {
+    int slot = findSlot(key);
+    if (slot >= 0)
+      return slot;
+    // keep the load factor at or below 2/3
+    if (3 * (size + 1) > 2 * keys.length) {
+      rehash(keys.length * 2);
+      slot = findSlot(key);
+    }
+    slot = -slot - 1;
+    keys[slot] = key;
+    counts[slot] = 0.0;
+    size++;
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    long[] oldKeys = keys;
+    double[] oldCounts = counts;
+    keys = newKeyArray(newCapacity);
+    counts = new double[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key == FREE) continue;
+      int slot = hash(key) & mask;
+      while (keys[slot] != FREE)
+        slot = (slot + 1) & mask;
+      keys[slot] = key;
+      counts[slot] = oldCounts[i];
+    }
+  }
+
+  private static long[] newKeyArray(int capacity) {
+    long[] array = new long[capacity];
+    Arrays.fill(array, FREE);
+    return array;
+  }
+
+  private static int tableSizeFor(int expectedSize) {
+    int capacity = DEFAULT_CAPACITY;
+    while (2 * capacity < 3 * expectedSize)
+      capacity <<= 1;
+    return capacity;
+  }
+
+  // -----------------------------------------------------------------------
+
+  /**
+   * The number of entries in the counter (not the total count).
+   */
+  public int size() {
+    return size + (hasFreeKey ? 1 : 0);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public boolean containsKey(long key) {
+    if (key == FREE)
+      return hasFreeKey;
+    return findSlot(key) >= 0;
+  }
+
+  /**
+   * Get the count of the key, or zero if the key is not in the counter.
+   */
+  public double getCount(long key) {
+    if (key == FREE)
+      return freeKeyCount;
+    int slot = findSlot(key);
+    if (slot < 0)
+      return 0.0;
+    return counts[slot];
+  }
+
+  /**
+   * Set the count for the given key, clobbering any previous count.
+   */
+  public void setCount(long key, double count) {
+    if (key == FREE) {
+      hasFreeKey = true;
+      freeKeyCount = count;
+      return;
+    }
+    int slot = ensureSlot(key);
+    counts[slot] = count;
+  }
+
+  /**
+   * Increment a key's count by the given amount, probing the table once.
+   */
+  public void incrementCount(long key, double increment) {
+    if (key == FREE) {
+      hasFreeKey = true;
+      freeKeyCount += increment;
+      return;
+    }
+    int slot = ensureSlot(key);
+    counts[slot] += increment;
+  }
+
+  /**
+   * Adds every count in the given counter into this one.
+   */
+  public void incrementAll(LongCounter counter) {
+    for (int i = 0; i < counter.keys.length; i++) {
+      if (counter.keys[i] != FREE)
+        incrementCount(counter.keys[i], counter.counts[i]);
+    }
+    if (counter.hasFreeKey)
+      incrementCount(FREE, counter.freeKeyCount);
+  }
+
+  /**
+   * Finds the total of all counts in the counter (linear time).
+   */
+  public double totalCount() {
+    double total = hasFreeKey ? freeKeyCount : 0.0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE)
+        total += counts[i];
+    }
+    return total;
+  }
+
+  /**
+   * Returns a new array holding the keys in the counter, in no particular
+   * order.
+   */
+  public long[] keys() {
+    long[] result = new long[size()];
+    int n = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE)
+        result[n++] = keys[i];
+    }
+    if (hasFreeKey)
+      result[n++] = FREE;
+    return result;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("[");
+    for (long key : keys()) {
+      if (sb.length() > 1)
+        sb.append(", ");
+      sb.append(key).append(" : ").append(getCount(key));
+    }
+    sb.append("]");
+    return sb.toString();
+  }
+
+  public LongCounter() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Builds a counter presized to hold the given number of keys without
+   * rehashing.
+   */
+  public LongCounter(int expectedSize) {
+    keys = newKeyArray(tableSizeFor(expectedSize));
+    counts = new double[keys.length];
+  }
+
+  public static void main(String[] args) {
+    LongCounter counter = new LongCounter();
+    counter.incrementCount(7L << 32 | 3, 2);
+    counter.incrementCount(7L << 32 | 3, 1);
+    counter.setCount(Long.MIN_VALUE, 5);
+    counter.setCount(0, 1);
+    System.out.println(counter);
+    System.out.println("Size: " + counter.size());
+    System.out.println("Total: " + counter.totalCount());
+  }
+}
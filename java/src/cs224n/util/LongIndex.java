@@ -0,0 +1,89 @@
+package cs224n.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Maintains a two-way map between a set of primitive longs and contiguous
+ * integers from 0 to the number of longs, like Index does for objects.  Use
+ * get(i) to look up long i, and indexOf(key) to look up the index of a key.
+ * The lookup table is open-addressed, so no Long objects are created.
+ */
+public class LongIndex implements Serializable {
+  static final long serialVersionUID = 1L;
+
+  private long[] objects;
+  private int[] table;   // slot -> index + 1, 0 marks an empty slot
+  private int size;
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private int findSlot(long key) {
+    int mask = table.length - 1;
+    int slot = hash(key) & mask;
+    while (table[slot] != 0 && objects[table[slot] - 1] != key)
+      slot = (slot + 1) & mask;
+    return slot;
+  }
+
+  private void rehash(int newCapacity) {
+    table = new int[newCapacity];
+    for (int i = 0; i < size; i++) {
+      table[findSlot(objects[i])] = i + 1;
+    }
+  }
+
+  /**
+   * Return the key with the given index
+   */
+  public long get(int index) {
+    if (index >= size)
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    return objects[index];
+  }
+
+  /**
+   * Returns the number of keys indexed.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the index of the given key, or -1 if the key is not present in
+   * the indexer.
+   */
+  public int indexOf(long key) {
+    return table[findSlot(key)] - 1;
+  }
+
+  public boolean contains(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Adds a key to the indexer if it is not already there, and returns its
+   * index either way.
+   */
+  public int add(long key) {
+    int slot = findSlot(key);
+    if (table[slot] != 0)
+      return table[slot] - 1;
+    if (size == objects.length)
+      objects = Arrays.copyOf(objects, 2 * objects.length);
+    objects[size] = key;
+    table[slot] = ++size;
+    // keep the load factor at or below 1/2
+    if (2 * size > table.length)
+      rehash(2 * table.length);
+    return size - 1;
+  }
+
+  public LongIndex() {
+    objects = new long[8];
+    table = new int[16];
+  }
+}
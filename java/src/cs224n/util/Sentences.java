@@ -1,6 +1,8 @@
 package cs224n.util;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -11,48 +13,147 @@ import java.util.*;
    *  sentences backed by a text file containing one sentence per line.  It
    *  provides an iterator over the sentences.  Because the collection is
    *  disk-backed, any operation other than iterating is likely to be slow.
+   *  An iterator holds the file open until it reaches the end; one given up
+   *  on before that should be closed (it is <code>Closeable</code>).
    */
   public class Sentences extends AbstractCollection<List<String>> {
 
     /** 
-     * An <code>Iterator</code> wrapped around a
-     * <code>BufferedReader</code>.  Each call to <code>next()</code> reads
-     * a line, lowercases it, splits it (on whitespace) into words, and
-     * returns a list of the words.
+     * An <code>Iterator</code> which scans the bytes of the file through a
+     * large NIO buffer.  Each call to <code>next()</code> finds the end of
+     * the next line, lowercases ASCII letters in place, splits the line on
+     * whitespace into words, and returns a list of the words.  Words are
+     * looked up in a TokenTable straight from their bytes, so a
+     * <code>String</code> is only created for a word the first time it is
+     * seen.  The words come out exactly as from
+     * <code>line.split("\\s+")</code> followed by
+     * <code>toLowerCase()</code>, for a UTF-8 file.
      */
-    static class SentenceIterator implements Iterator<List<String>> {
+    static class SentenceIterator implements Iterator<List<String>>, Closeable {
 
-      BufferedReader reader;
+      private static final int BUFFER_SIZE = 1 << 20;
+
+      FileChannel channel;
+      TokenTable tokens = new TokenTable();
+      byte[] bytes = new byte[BUFFER_SIZE];
+      int position;
+      int limit;
+      boolean eof;
+
+      private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+      }
+
+      /**
+       * Moves the unread bytes to the front of the buffer (growing it if
+       * they fill it) and reads more; returns false at end of file.
+       */
+      private boolean fill() throws IOException {
+        if (eof)
+          return false;
+        if (position > 0) {
+          System.arraycopy(bytes, position, bytes, 0, limit - position);
+          limit -= position;
+          position = 0;
+        }
+        if (limit == bytes.length)
+          bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+        int n = channel.read(ByteBuffer.wrap(bytes, limit, bytes.length - limit));
+        if (n < 0) {
+          eof = true;
+          channel.close();
+          return false;
+        }
+        limit += n;
+        return true;
+      }
 
       public boolean hasNext() {
         try {
-          return reader.ready();
+          while (position == limit) {
+            if (!fill())
+              return false;
+          }
+          return true;
         } catch (IOException e) {
-          return false;
+          throw new RuntimeException(e);
         }
       }
 
       public List<String> next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
         try {
-          String line = reader.readLine();
-          String[] words = line.split("\\s+");
-          List<String> sentence = new ArrayList<String>();
-          for (int i = 0; i < words.length; i++) {
-            String word = words[i];
-            sentence.add(word.toLowerCase());
+          // find the end of the line; \n, \r and \r\n all end a line
+          int end = position;
+          while (true) {
+            while (end < limit && bytes[end] != '\n' && bytes[end] != '\r')
+              end++;
+            if (end < limit || eof)
+              break;
+            int scanned = end - position;
+            fill();
+            end = position + scanned;
+          }
+          if (end + 1 == limit && bytes[end] == '\r' && !eof) {
+            int scanned = end - position;     // look past the \r for a \n
+            fill();
+            end = position + scanned;
           }
+          List<String> sentence = split(position, end);
+          if (end < limit) {
+            end += (bytes[end] == '\r' && end + 1 < limit && bytes[end + 1] == '\n') ? 2 : 1;
+          }
+          position = end;
           return sentence;
         } catch (IOException e) {
-          throw new NoSuchElementException();
+          throw new RuntimeException(e);
+        }
+      }
+
+      private List<String> split(int start, int end) {
+        List<String> sentence = new ArrayList<String>();
+        if (start == end) {
+          sentence.add("");
+          return sentence;
         }
+        for (int i = start; i < end; i++) {
+          byte b = bytes[i];
+          if (b >= 'A' && b <= 'Z')
+            bytes[i] = (byte) (b + ('a' - 'A'));
+        }
+        boolean leadingWhitespace = isWhitespace(bytes[start]);
+        int i = start;
+        while (i < end) {
+          while (i < end && isWhitespace(bytes[i]))
+            i++;
+          if (i == end)
+            break;
+          int wordStart = i;
+          while (i < end && !isWhitespace(bytes[i]))
+            i++;
+          if (leadingWhitespace && sentence.isEmpty())
+            sentence.add("");
+          sentence.add(tokens.get(bytes, wordStart, i));
+        }
+        return sentence;
       }
 
       public void remove() {
         throw new UnsupportedOperationException();
       }
 
-      public SentenceIterator(BufferedReader reader) {
-        this.reader = reader;
+      /**
+       * Closes the file; the iterator then has no more sentences.
+       */
+      public void close() throws IOException {
+        eof = true;
+        position = limit;
+        channel.close();
+      }
+
+      public SentenceIterator(FileChannel channel) {
+        this.channel = channel;
       }
 
     } // end SentenceIterator
@@ -63,8 +164,8 @@ import java.util.*;
      */
     public Iterator<List<String>> iterator() {
       try {
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        return new SentenceIterator(reader);
+        FileChannel channel = new FileInputStream(filename).getChannel();
+        return new SentenceIterator(channel);
       } catch (FileNotFoundException e) {
         throw new RuntimeException("File not found: " + filename);
       }
@@ -88,7 +189,12 @@ import java.util.*;
      */
     public Sentences(String filename) {
       this.filename = filename;
-      iterator();                       // causes error to be thrown if file not readable
+      // causes error to be thrown if file not readable
+      try {
+        ((SentenceIterator) iterator()).close();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
     }
 
     /** Takes the name of a file containing sentences and returns a new
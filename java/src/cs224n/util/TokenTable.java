@@ -0,0 +1,99 @@
+package cs224n.util;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Hands out one canonical <code>String</code> per distinct token, looked up
+ * straight from a range of bytes, so a tokenizer creates a String only the
+ * first time it sees a token.  Keeping the same String instances also means
+ * their hash codes are computed once, which makes later lookups of the
+ * tokens in hash maps (for example a Vocabulary's Index) cheap.  <p/>
+ *
+ * Tokens are UTF-8; a token's String is its decoded bytes, lowercased.  The
+ * table is an open-addressing hash table (linear probing) over the token
+ * bytes.  It is not thread-safe.
+ */
+public class TokenTable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private byte[][] keys;
+  private int[] hashes;
+  private String[] values;
+  private int size;
+
+  private static int hash(byte[] bytes, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++)
+      h = 31 * h + bytes[i];
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static boolean matches(byte[] key, byte[] bytes, int start, int end) {
+    if (key.length != end - start)
+      return false;
+    for (int i = 0; i < key.length; i++) {
+      if (key[i] != bytes[start + i])
+        return false;
+    }
+    return true;
+  }
+
+  private void rehash(int newCapacity) {
+    byte[][] oldKeys = keys;
+    int[] oldHashes = hashes;
+    String[] oldValues = values;
+    keys = new byte[newCapacity][];
+    hashes = new int[newCapacity];
+    values = new String[newCapacity];
+    int mask = newCapacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] == null) continue;
+      int slot = oldHashes[i] & mask;
+      while (keys[slot] != null)
+        slot = (slot + 1) & mask;
+      keys[slot] = oldKeys[i];
+      hashes[slot] = oldHashes[i];
+      values[slot] = oldValues[i];
+    }
+  }
+
+  /**
+   * Returns the String for the token in bytes[start, end), creating it
+   * only if the token has not been seen before.
+   */
+  public String get(byte[] bytes, int start, int end) {
+    int h = hash(bytes, start, end);
+    int mask = keys.length - 1;
+    int slot = h & mask;
+    while (keys[slot] != null) {
+      if (hashes[slot] == h && matches(keys[slot], bytes, start, end))
+        return values[slot];
+      slot = (slot + 1) & mask;
+    }
+    String value = new String(bytes, start, end - start, UTF8).toLowerCase();
+    keys[slot] = Arrays.copyOfRange(bytes, start, end);
+    hashes[slot] = h;
+    values[slot] = value;
+    size++;
+    // keep the load factor at or below 1/2
+    if (2 * size > keys.length)
+      rehash(2 * keys.length);
+    return value;
+  }
+
+  /**
+   * The number of distinct tokens seen.
+   */
+  public int size() {
+    return size;
+  }
+
+  public TokenTable() {
+    keys = new byte[1024][];
+    hashes = new int[keys.length];
+    values = new String[keys.length];
+  }
+}